@@ -0,0 +1,134 @@
+package com.kaigan.bots.narrator;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sending bursts of queued actions through {@link ActionChains} to a simulated REST endpoint that answers after a
+ * random latency, and sometimes fails. Compares chaining every action behind one global chain, as it was done before,
+ * with chaining them per channel. Each channel checks that its actions arrive in the order they were queued, even
+ * when the previous action failed.
+ * Run with <code>gradlew jmh -PjmhArgs=ActionChainsBenchmark</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ActionChainsBenchmark {
+
+    static final int ACTIONS = 200;                 // actions queued per burst
+    static final long MAX_LATENCY = 2000;           // microseconds
+    static final int FAILURE_RATE = 20;             // one of every n requests fails
+
+    /**
+     * Simulated channel, receives actions and checks their order.
+     */
+    static class SimulatedChannel {
+        final long id;
+        int queued;
+        int received;
+        int outOfOrder;
+
+        SimulatedChannel(long id) {
+            this.id = id;
+        }
+
+        synchronized void receive(int sequence) {
+            if(sequence != received)
+                outOfOrder++;
+            received = sequence + 1;
+        }
+    }
+
+    @Param({ "1", "10", "50" })
+    public int channels;
+
+    ScheduledExecutorService rest;
+    SimulatedChannel[] simulated;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        rest = Executors.newScheduledThreadPool(4);
+        simulated = new SimulatedChannel[channels];
+        for(int c = 0; c < channels; c++)
+            simulated[c] = new SimulatedChannel(100 + c);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        rest.shutdownNow();
+        for(SimulatedChannel channel : simulated) {
+            if(channel.outOfOrder > 0)
+                throw new IllegalStateException("Channel " + channel.id + " received " + channel.outOfOrder + " actions out of order");
+        }
+    }
+
+    /**
+     * Sends the action after a random latency, completes done whether it succeeded or failed.
+     */
+    CompletableFuture<Void> send(SimulatedChannel channel, int sequence) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long latency = random.nextLong(MAX_LATENCY);
+        boolean isFailed = random.nextInt(FAILURE_RATE) == 0;
+        rest.schedule(() -> {
+            channel.receive(sequence);
+            if(isFailed)
+                done.completeExceptionally(new IllegalStateException("Simulated failure"));
+            else
+                done.complete(null);
+        }, latency, TimeUnit.MICROSECONDS);
+        return done;
+    }
+
+    int burst(boolean isGlobal) {
+        ActionChains chains = new ActionChains();
+        AtomicInteger sent = new AtomicInteger();
+        CompletableFuture<?>[] all = new CompletableFuture<?>[ACTIONS];
+        for(int c = 0; c < ACTIONS; c++) {
+            SimulatedChannel channel = simulated[c % simulated.length];
+            int sequence = channel.queued++;
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            chains.enqueue(isGlobal ? 0 : channel.id, done, () -> send(channel, sequence).whenComplete((result, e) -> {
+                sent.incrementAndGet();
+                done.complete(null);        // failed actions give up, next action still goes
+            }));
+            all[c] = done;
+        }
+        CompletableFuture.allOf(all).join();
+        return sent.get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACTIONS)
+    public int globalChain() {
+        return burst(true);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACTIONS)
+    public int channelChains() {
+        return burst(false);
+    }
+}
@@ -0,0 +1,135 @@
+package com.kaigan.bots.narrator;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Dispatching bursts of events with {@link Narrator#dispatchEvent} to simulated story services spread over dispatch
+ * lanes, each lane a single thread like the lanes started by {@link Narrator#startDispatchLanes(int)}. Every event goes
+ * to a catch-all service on the calling thread and to one story service, which spends a fixed time on it either
+ * blocked, like waiting on a script or a file, or computing. Events per second should grow with the number of lanes,
+ * up to the number of cores for computing services. Each story service checks that its events arrive in the order
+ * they were dispatched.
+ * Run with <code>gradlew jmh -PjmhArgs=DispatchLanesBenchmark</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchLanesBenchmark {
+
+    static final int EVENTS = 256;              // events dispatched per burst
+    static final int STORY_SERVICES = 32;
+    static final long WORK_NANOS = 100_000;     // 100 microseconds per event
+
+    /**
+     * Simulated story service, serialized on the lane of its dispatch key.
+     */
+    static class SimulatedService implements NarratorService {
+        final Integer key;
+        final boolean isBlocking;
+        int dispatched;             // only used by the dispatching thread
+        int received;
+        int outOfOrder;
+
+        SimulatedService(Integer key, boolean isBlocking) {
+            this.key = key;
+            this.isBlocking = isBlocking;
+        }
+
+        @Override
+        public Object getDispatchKey() {
+            return key;
+        }
+
+        void receive(int sequence) {
+            if(isBlocking)
+                LockSupport.parkNanos(WORK_NANOS);
+            else {
+                long until = System.nanoTime() + WORK_NANOS;
+                while(System.nanoTime() < until)
+                    Thread.onSpinWait();
+            }
+            // Lanes are serial, no other thread receives events for this service at the same time
+            if(sequence != received)
+                outOfOrder++;
+            received = sequence + 1;
+        }
+    }
+
+    @Param({ "1", "2", "4", "8" })
+    public int lanes;
+
+    @Param({ "blocking", "computing" })
+    public String work;
+
+    ExecutorService[] executors;
+    SimulatedService[] services;
+    final NarratorService catchAll = new NarratorService() { };
+
+    @Setup(Level.Trial)
+    public void setup() {
+        executors = new ExecutorService[lanes];
+        for(int c = 0; c < lanes; c++)
+            executors[c] = Executors.newSingleThreadExecutor();
+        services = new SimulatedService[STORY_SERVICES];
+        for(int c = 0; c < STORY_SERVICES; c++)
+            services[c] = new SimulatedService(100 + c, work.equals("blocking"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        for(ExecutorService executor : executors) {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        for(SimulatedService service : services) {
+            if(service.outOfOrder > 0)
+                throw new IllegalStateException("Service " + service.key + " received " + service.outOfOrder + " events out of order");
+        }
+    }
+
+    ExecutorService laneOf(NarratorService service) {
+        Object key = service.getDispatchKey();
+        return key != null ? executors[Narrator.laneIndex(key, executors.length)] : null;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public void dispatch() throws InterruptedException {
+        CountDownLatch received = new CountDownLatch(EVENTS);
+        for(int c = 0; c < EVENTS; c++) {
+            SimulatedService target = services[c % services.length];
+            int sequence = target.dispatched++;
+            Narrator.dispatchEvent(Arrays.asList(catchAll, target), service -> {
+                if(service == target) {
+                    target.receive(sequence);
+                    received.countDown();
+                }
+                return false;
+            }, this::laneOf);
+        }
+        received.await();
+    }
+}
@@ -0,0 +1,263 @@
+package com.kaigan.bots.narrator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.kaigan.bots.narrator.story.Conversation;
+import com.kaigan.bots.narrator.story.SenderMessage;
+import com.kaigan.bots.narrator.story.StoryBuilder;
+import com.kaigan.bots.narrator.story.StoryChannelBuilder;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sengine.mass.Mass;
+import sengine.mass.io.Input;
+
+/**
+ * Rendering real templates, the messages of the config sheet or the sender messages of all stories, with the
+ * parameters and state resolver they are given when playing. Compares matching the format string with a regex and
+ * looking up parameters in a map on every call, as it was done before, with rendering cached {@link FormatTemplate}s.
+ * Run with <code>gradlew jmh -PnarratorKey=... -PjmhArgs=FormatTemplateBenchmark</code>, the key is the one configured
+ * in the main sheet and is only needed for stories.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormatTemplateBenchmark {
+
+    static final String CONFIG_PATH = "main.xlsx";
+    static final String STORIES_PATH = "stories";
+    static final String STORY_FORMAT = ".story";
+
+    // Parameters given by story services, values look like mentions and names
+    static final Object[] PARAMS = {
+            "sender", "<@312345678901234567>",
+            "participant", "<@312345678901234568>",
+            "player", "<@312345678901234569>",
+            "name", "Detective Kim",
+            "code", "4603",
+            "id", "4603",
+            "title", "The Lighthouse",
+            "author", "Azmi",
+            "description", "A storm is coming and the light has gone out.",
+            "message", "Are you still there?",
+            "choiceEmote", "<:choice1:712345678901234567>",
+            "selection", "1. Yes\n2. No",
+            "error", "Missing join, joinAll or joinPersist for previous splits",
+    };
+
+    /**
+     * Format of {@link Narrator} before templates were compiled, the format string is matched on every call.
+     * Emotes are looked up by name in a map, before they were looked up in the guild.
+     */
+    static class RegexFormatter {
+        private static final Pattern RE = Pattern.compile(
+                "(%\\(([^)]+)\\))"  // Look for %(keys) to replace
+        );
+
+        private final ThreadLocal<Map<String, Object>> textFormatLookup = ThreadLocal.withInitial(HashMap::new);
+        private final Map<String, String> emoteMentions;
+
+        RegexFormatter(Map<String, String> emoteMentions) {
+            this.emoteMentions = emoteMentions;
+        }
+
+        String format(String format, Object ... params) {
+            // Store parameters
+            int length = params.length;
+            Narrator.FormatResolver resolver = null;
+            if(length % 2 == 1) {
+                // The last parameter must be a FormatResolver
+                resolver = (Narrator.FormatResolver) params[length - 1];
+                length--;
+            }
+            Map<String, Object> textFormatLookup = this.textFormatLookup.get();
+            for(int c = 0; c < length; c+= 2) {
+                String name = (String) params[c];
+                Object value = params[c + 1];
+                textFormatLookup.put(name, value);
+            }
+            Narrator.FormatResolver finalResolver = resolver;
+            String formatted = RE.matcher(format).replaceAll(match -> {
+                        String lookup = match.group(2);
+                        if(lookup.startsWith(":") && lookup.endsWith(":")) {
+                            // Resolving emote
+                            String mention = emoteMentions.get(lookup.substring(1, lookup.length() - 1));
+                            if(mention != null)
+                                return mention;
+                        }
+                        // Use given format lookup
+                        Object resolvedLookup = textFormatLookup.get(lookup);
+                        if(resolvedLookup != null)
+                            return resolvedLookup.toString();
+                        // Else us resolver if available
+                        if(finalResolver != null) {
+                            String resolved = finalResolver.resolve(lookup);
+                            if(resolved != null)
+                                return resolved;
+                        }
+                        // Else wasn't able to resolve, just return unchanged
+                        return match.group(0);
+                    }
+            );
+            // Reset
+            textFormatLookup.clear();
+            return formatted;
+        }
+    }
+
+    @Param({ "config", "stories" })
+    public String source;
+
+    String[] templates;
+    Object[] params;
+    final Map<String, String> emoteMentions = new HashMap<>();
+    RegexFormatter regexFormatter;
+    final Map<String, FormatTemplate> formatTemplates = new ConcurrentHashMap<>();
+    final StringBuilder sb = new StringBuilder();
+    int next;
+
+    static String key() {
+        String key = System.getProperty("narrator.key");
+        if(key == null || key.isEmpty())
+            throw new IllegalStateException("narrator.key is not set");
+        return key;
+    }
+
+    static void addTemplate(List<String> templates, String format) {
+        if(format != null && format.contains("%("))
+            templates.add(format);
+    }
+
+    static List<String> configTemplates() throws IOException {
+        List<String> templates = new ArrayList<>();
+        DataFormatter formatter = new DataFormatter();
+        try(InputStream s = Files.newInputStream(Paths.get(CONFIG_PATH)); Workbook wb = new XSSFWorkbook(s)) {
+            for(Sheet sheet : wb) {
+                for(Row row : sheet) {
+                    for(Cell cell : row)
+                        addTemplate(templates, formatter.formatCellValue(cell));
+                }
+            }
+        }
+        return templates;
+    }
+
+    static List<String> storyTemplates() throws IOException {
+        String key = key();
+        List<Path> files;
+        try(Stream<Path> list = Files.list(Paths.get(STORIES_PATH))) {
+            files = list.filter(path -> path.toString().endsWith(STORY_FORMAT)).sorted().collect(Collectors.toList());
+        }
+        List<String> templates = new ArrayList<>();
+        for(Path file : files) {
+            Mass mass = new Mass();
+            mass.load(new Input(Files.readAllBytes(file)), STORY_FORMAT, key);
+            StoryBuilder story = mass.get(0, true);
+            for(StoryChannelBuilder channel : story.channels) {
+                for(Conversation conversation : channel.conversations) {
+                    for(SenderMessage message : conversation.senderMessages)
+                        addTemplate(templates, message.message);
+                }
+            }
+        }
+        return templates;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        List<String> templates = source.equals("config") ? configTemplates() : storyTemplates();
+        if(templates.isEmpty())
+            throw new IllegalStateException("No templates found in " + source);
+        this.templates = templates.toArray(new String[0]);
+
+        emoteMentions.put("yes", "<:yes:712345678901234561>");
+        emoteMentions.put("no", "<:no:712345678901234562>");
+        for(int c = 1; c <= 9; c++)
+            emoteMentions.put("choice" + c, "<:choice" + c + ":71234567890123457" + c + ">");
+        regexFormatter = new RegexFormatter(emoteMentions);
+
+        // Stories are formatted with the instance resolver, which resolves @states
+        Map<String, Object> states = new HashMap<>();
+        states.put("player.name", "Detective Kim");
+        states.put("chapter", 3);
+        Narrator.FormatResolver resolver = identifier -> {
+            if(identifier.startsWith("@")) {
+                Object value = states.get(identifier.substring(1));
+                if(value != null)
+                    return value.toString();
+            }
+            return null;
+        };
+        params = new Object[PARAMS.length + 1];
+        System.arraycopy(PARAMS, 0, params, 0, PARAMS.length);
+        params[PARAMS.length] = resolver;
+
+        // Both must render the same text
+        for(String format : this.templates) {
+            String expected = regexFormatter.format(format, params);
+            String rendered = render(format);
+            if(!expected.equals(rendered))
+                throw new IllegalStateException("Rendered \"" + rendered + "\" instead of \"" + expected + "\"");
+        }
+    }
+
+    String nextTemplate() {
+        String template = templates[next];
+        next = (next + 1) % templates.length;
+        return template;
+    }
+
+    String render(String format) {
+        // Same as Narrator.format
+        FormatTemplate template = formatTemplates.computeIfAbsent(format, FormatTemplate::compile);
+        if(template.isLiteral())
+            return format;
+        try {
+            template.render(sb, emoteMentions, params, params.length - 1, (Narrator.FormatResolver) params[params.length - 1]);
+            return sb.toString();
+        } finally {
+            sb.setLength(0);
+        }
+    }
+
+    @Benchmark
+    public String regex() {
+        return regexFormatter.format(nextTemplate(), params);
+    }
+
+    @Benchmark
+    public String template() {
+        return render(nextTemplate());
+    }
+}
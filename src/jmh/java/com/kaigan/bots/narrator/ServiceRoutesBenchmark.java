@@ -0,0 +1,117 @@
+package com.kaigan.bots.narrator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Delivering guild messages to simulated services shaped like running stories: one catch-all story service, instances
+ * monitoring the shared lobby channel and channel services monitoring their own story channel.
+ * Compares copying and asking every service, as it was done before, with {@link ServiceRoutes}.
+ * Run with <code>gradlew jmh -PjmhArgs=ServiceRoutesBenchmark</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServiceRoutesBenchmark {
+
+    static final long LOBBY_CHANNEL = 1;
+
+    static class SimulatedService implements NarratorService {
+        final long channel;         // monitored channel, -1 for all channels
+        int received;
+
+        SimulatedService(long channel) {
+            this.channel = channel;
+        }
+
+        boolean process(long channel) {
+            if(this.channel != -1 && this.channel != channel)
+                return false;       // not monitored
+            received++;
+            return false;
+        }
+    }
+
+    @Param({ "50", "500" })
+    public int services;
+
+    final List<NarratorService> list = new ArrayList<>();
+    final List<NarratorService> iterator = new ArrayList<>();
+    final ServiceRoutes routes = new ServiceRoutes();
+    long[] channels;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // Story service
+        SimulatedService story = new SimulatedService(-1);
+        list.add(story);
+        routes.addCatchAll(story);
+        // One instance for every 4 story channels
+        List<Long> channels = new ArrayList<>();
+        channels.add(LOBBY_CHANNEL);
+        for(int c = 1; c < services; c++) {
+            SimulatedService service;
+            if(c % 5 == 0)
+                service = new SimulatedService(LOBBY_CHANNEL);
+            else {
+                service = new SimulatedService(100 + c);
+                channels.add(service.channel);
+            }
+            list.add(service);
+            routes.add(service.channel, service);
+        }
+        this.channels = channels.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    long nextChannel() {
+        long channel = channels[next];
+        next = (next + 1) % channels.length;
+        return channel;
+    }
+
+    @Benchmark
+    public int fanOut() {
+        long channel = nextChannel();
+        iterator.clear();
+        synchronized (list) {
+            iterator.addAll(list);
+        }
+        int received = 0;
+        for(NarratorService service : iterator) {
+            if(((SimulatedService) service).process(channel))
+                break;
+            received++;
+        }
+        return received;
+    }
+
+    @Benchmark
+    public int routed() {
+        long channel = nextChannel();
+        int received = 0;
+        for(NarratorService service : routes.get(channel)) {
+            if(((SimulatedService) service).process(channel))
+                break;
+            received++;
+        }
+        return received;
+    }
+}
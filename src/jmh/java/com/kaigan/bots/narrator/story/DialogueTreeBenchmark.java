@@ -0,0 +1,113 @@
+package com.kaigan.bots.narrator.story;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Refreshing a dialogue tree after a single tag flip, on a simulated channel where every chapter tag unlocks a few
+ * conversations and each conversation is locked once it is seen.
+ * Compares re-evaluating every conversation, as every refresh did before conditions were indexed, with only
+ * re-evaluating conversations referencing the flipped tag. The full refresh is forced by replacing all states, which
+ * is the only case that still re-evaluates everything.
+ * Run with <code>gradlew jmh -PjmhArgs=DialogueTreeBenchmark</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DialogueTreeBenchmark {
+
+    static final String NAMESPACE = "bench";
+    static final int CONVERSATIONS_PER_CHAPTER = 10;
+    static final String OPEN_CHAPTER = NAMESPACE + ".chapter0";
+
+    @Param({ "100", "1000" })
+    public int conversations;
+
+    ScriptState states;
+    DialogueTree tree;
+    boolean[] seen;
+    int next;
+
+    static UserMessage userMessage(String message, String... tags) {
+        UserMessage userMessage = new UserMessage();
+        userMessage.message = message;
+        userMessage.player = "player";
+        for(String tag : tags)
+            userMessage.tags.add(tag);
+        return userMessage;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        StoryChannelBuilder model = new StoryChannelBuilder();
+        model.name = NAMESPACE;
+        for(int c = 0; c < conversations; c++) {
+            Conversation conversation = new Conversation();
+            conversation.tags.add("chapter" + (c / CONVERSATIONS_PER_CHAPTER));
+            conversation.tags.add("!seen" + c);
+            if(c % 10 == 9)
+                conversation.tags.add(DialogueTree.TAG_IDLE);
+            conversation.userMessages.add(userMessage("reply " + c));
+            conversation.userMessages.add(userMessage(DialogueTree.DIALOG_TIMER + "5", "!hurry"));
+            conversation.tagsToUnlock.add("seen" + c);
+            model.conversations.add(conversation);
+        }
+
+        states = new ScriptState();
+        states.set(OPEN_CHAPTER, true, false);
+        tree = new DialogueTree(states, model);
+        seen = new boolean[conversations];
+        tree.refreshCurrent();
+        if(tree.current != null || tree.available.isEmpty())
+            throw new IllegalStateException("Expected available conversations in the open chapter");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tree.dispose();
+    }
+
+    int flipNext() {
+        // Flip tags of conversations in the open chapter, so refreshes change what is available
+        int conversation = next++ % CONVERSATIONS_PER_CHAPTER;
+        seen[conversation] = !seen[conversation];
+        return conversation;
+    }
+
+    @Benchmark
+    public int fullRefresh() {
+        flipNext();
+        states.clear();
+        states.set(OPEN_CHAPTER, true, false);
+        for(int c = 0; c < CONVERSATIONS_PER_CHAPTER; c++) {
+            if(seen[c])
+                states.set(NAMESPACE + ".seen" + c, true, false);
+        }
+        tree.refreshCurrent();
+        return tree.available.size();
+    }
+
+    @Benchmark
+    public int incrementalRefresh() {
+        int conversation = flipNext();
+        states.set(NAMESPACE + ".seen" + conversation, seen[conversation], false);
+        tree.refreshCurrent();
+        return tree.available.size();
+    }
+}
@@ -0,0 +1,73 @@
+package com.kaigan.bots.narrator.story;
+
+import com.badlogic.gdx.utils.Array;
+
+import java.util.HashMap;
+
+/**
+ * {@link ScriptState} as it was before tags were stored as bits, every variable in a map and every listener checked on
+ * each change. Kept as the baseline of {@link ScriptStateBenchmark}.
+ */
+class HashMapScriptState {
+
+    private static class OnChangeListenerEntry {
+        final String prefix;
+        final Class type;
+        final ScriptState.OnChangeListener listener;
+
+        OnChangeListenerEntry(String prefix, Class type, ScriptState.OnChangeListener listener) {
+            this.prefix = prefix;
+            this.type = type;
+            this.listener = listener;
+        }
+    }
+
+    private final HashMap<String, Object> variables = new HashMap<String, Object>();
+    private final Array<OnChangeListenerEntry> onChangeListeners = new Array<OnChangeListenerEntry>(OnChangeListenerEntry.class);
+    private final Array<ScriptState.ChangeTracker> changeTrackers = new Array<ScriptState.ChangeTracker>(ScriptState.ChangeTracker.class);
+
+    public void addChangeTracker(ScriptState.ChangeTracker tracker) {
+        changeTrackers.add(tracker);
+    }
+
+    public <T> void addOnChangeListener(String prefix, Class<T> type, ScriptState.OnChangeListener<T> listener) {
+        onChangeListeners.add(new OnChangeListenerEntry(prefix, type, listener));
+    }
+
+    public <T> T get(String name, T defaultValue) {
+        Object result = variables.get(name);
+        if(result == null)
+            return defaultValue;
+        return (T) result;
+    }
+
+    public void set(String name, Object value, boolean notifyOnChange) {
+        Object stored = value;
+        if(stored instanceof Boolean) {
+            if(!((Boolean) stored))
+                stored = null;
+        }
+        Object prev;
+        if(stored == null)
+            prev = variables.remove(name);
+        else
+            prev = variables.put(name, value);
+        if(prev == value || (prev != null && value != null && prev.equals(value)))
+            return;     // nothing has changed
+        for(int c = 0; c < changeTrackers.size; c++)
+            changeTrackers.items[c].onTrackedChange(name);
+        if(!notifyOnChange)
+            return;     // no need to notify
+        // Check for on change
+        for(int c = 0; c < onChangeListeners.size; c++) {
+            OnChangeListenerEntry e = onChangeListeners.items[c];
+            if(name.startsWith(e.prefix)) {
+                // Name matches, check type
+                Class<?> type = value != null ? value.getClass() : prev.getClass();
+                if(e.type.isAssignableFrom(type)) {
+                    e.listener.onChanged(name, value, prev);
+                }
+            }
+        }
+    }
+}
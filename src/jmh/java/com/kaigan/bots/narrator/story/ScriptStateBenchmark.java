@@ -0,0 +1,124 @@
+package com.kaigan.bots.narrator.story;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading and flipping tags of a simulated story instance, where every channel tracks changes for its dialogue tree
+ * and listens to its own namespace, like story channel services do.
+ * Compares the map and listener list of {@link HashMapScriptState}, as it was done before, with the tag bits and
+ * listener trie of {@link ScriptState}. Get reads a tag, set flips a tag without notifying listeners and notify flips
+ * a tag and notifies listeners.
+ * Run with <code>gradlew jmh -PjmhArgs=ScriptStateBenchmark</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScriptStateBenchmark {
+
+    static final int TAGS_PER_CHANNEL = 50;
+
+    @Param({ "5", "20" })
+    public int channels;
+
+    ScriptState states;
+    HashMapScriptState baseline;
+    String[] names;
+    boolean[] values;
+    boolean[] baselineValues;
+    int next;
+    int changes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        states = new ScriptState();
+        baseline = new HashMapScriptState();
+        names = new String[channels * TAGS_PER_CHANNEL];
+        values = new boolean[names.length];
+        baselineValues = new boolean[names.length];
+        for(int c = 0; c < channels; c++) {
+            String namespace = "channel" + c + ".";
+            ScriptState.ChangeTracker tracker = name -> changes++;
+            ScriptState.OnChangeListener<Object> listener = (name, var, prev) -> changes++;
+            states.addChangeTracker(tracker);
+            states.addOnChangeListener(namespace, Object.class, listener);
+            baseline.addChangeTracker(tracker);
+            baseline.addOnChangeListener(namespace, Object.class, listener);
+            for(int t = 0; t < TAGS_PER_CHANNEL; t++) {
+                int index = c * TAGS_PER_CHANNEL + t;
+                names[index] = namespace + "tag" + t;
+                // Half of the tags start unlocked
+                if(t % 2 == 0) {
+                    states.set(names[index], true, false);
+                    baseline.set(names[index], true, false);
+                    values[index] = true;
+                    baselineValues[index] = true;
+                }
+            }
+        }
+    }
+
+    int nextIndex() {
+        // Stride through channels so consecutive changes do not hit the same namespace
+        int index = next;
+        next = (next + TAGS_PER_CHANNEL + 1) % names.length;
+        return index;
+    }
+
+    @Benchmark
+    public boolean getHashMap() {
+        return baseline.get(names[nextIndex()], false);
+    }
+
+    @Benchmark
+    public boolean getBitSet() {
+        return states.get(names[nextIndex()], false);
+    }
+
+    @Benchmark
+    public int setHashMap() {
+        int index = nextIndex();
+        baselineValues[index] = !baselineValues[index];
+        baseline.set(names[index], baselineValues[index], false);
+        return changes;
+    }
+
+    @Benchmark
+    public int setBitSet() {
+        int index = nextIndex();
+        values[index] = !values[index];
+        states.set(names[index], values[index], false);
+        return changes;
+    }
+
+    @Benchmark
+    public int notifyHashMap() {
+        int index = nextIndex();
+        baselineValues[index] = !baselineValues[index];
+        baseline.set(names[index], baselineValues[index], true);
+        return changes;
+    }
+
+    @Benchmark
+    public int notifyBitSet() {
+        int index = nextIndex();
+        values[index] = !values[index];
+        states.set(names[index], values[index], true);
+        return changes;
+    }
+}
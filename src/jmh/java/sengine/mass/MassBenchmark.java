@@ -0,0 +1,199 @@
+package sengine.mass;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sengine.mass.io.Input;
+import sengine.mass.io.Output;
+
+/**
+ * Serialization of real stories and the narrator save.
+ * Run with <code>gradlew jmh -PnarratorKey=...</code>, the key is the one configured in the main sheet.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MassBenchmark {
+
+	static final String STORIES_PATH = "stories";
+	static final String STORY_FORMAT = ".story";
+	static final String SAVE_PATH = "narrator.save";
+
+	static String key() {
+		String key = System.getProperty("narrator.key");
+		if(key == null || key.isEmpty())
+			throw new IllegalStateException("narrator.key is not set");
+		return key;
+	}
+
+	@State(Scope.Benchmark)
+	public static class StoryGraph {
+		@Param({ "1", "8", "32" })
+		public int stories;				// number of stories in one graph, story files are repeated if there are not enough
+
+		@Param({ "true", "false" })
+		public boolean compressed;
+
+		@Param({ "DEFLATE_BEST", "DEFLATE_FAST", "LZ" })
+		public String codec;				// name of a MassCodec constant
+
+		String key;
+		float minCompressionRatio;
+		MassCodec defaultCodec;
+		List<Object> graph;
+		int objects;
+		byte[] saved;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			key = key();
+
+			// Disabling compression by requiring an impossible compression ratio
+			minCompressionRatio = Mass.minCompressionRatio;
+			if(!compressed)
+				Mass.minCompressionRatio = Float.MAX_VALUE;
+			defaultCodec = Mass.defaultCodec;
+			try {
+				Mass.defaultCodec = (MassCodec) MassCodec.class.getField(codec).get(null);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalArgumentException("Unknown codec: " + codec, e);
+			}
+
+			List<Path> files;
+			try(Stream<Path> list = Files.list(Paths.get(STORIES_PATH))) {
+				files = list.filter(path -> path.toString().endsWith(STORY_FORMAT)).sorted().collect(Collectors.toList());
+			}
+			if(files.isEmpty())
+				throw new IllegalStateException("No stories found in " + STORIES_PATH);
+
+			graph = new ArrayList<Object>(stories);
+			for(int c = 0; c < stories; c++) {
+				Mass mass = new Mass();
+				mass.load(new Input(Files.readAllBytes(files.get(c % files.size()))), STORY_FORMAT, key);
+				graph.add(mass.get(0, true));
+			}
+
+			Mass mass = new Mass();
+			mass.add(graph);
+			objects = mass.getNumObjects();
+			Output output = new Output(64 * 1024);
+			mass.save(output, STORY_FORMAT, key);
+			saved = new byte[output.position()];
+			System.arraycopy(output.getBuffer(), 0, saved, 0, saved.length);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			Mass.minCompressionRatio = minCompressionRatio;
+			Mass.defaultCodec = defaultCodec;
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class SaveFile {
+		String key;
+		byte[] saved;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			key = key();
+			saved = Files.readAllBytes(Paths.get(SAVE_PATH));
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Buffer {
+		final Output output = new Output(64 * 1024);
+
+		@Setup(Level.Invocation)
+		public void clear() {
+			output.clear();
+		}
+	}
+
+	/**
+	 * Reported next to throughput, bytes per object is bytes divided by objects.
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Size {
+		public long bytes;
+		public long objects;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+			objects = 0;
+		}
+	}
+
+	@Benchmark
+	public Output saveStories(StoryGraph graph, Buffer buffer, Size size) {
+		Mass mass = new Mass();
+		mass.add(graph.graph);
+		mass.save(buffer.output, STORY_FORMAT, graph.key);
+		size.bytes += buffer.output.position();
+		size.objects += mass.getNumObjects();
+		return buffer.output;
+	}
+
+	@Benchmark
+	public Mass loadStories(StoryGraph graph, Size size) {
+		Mass mass = new Mass();
+		mass.load(new Input(graph.saved), STORY_FORMAT, graph.key);
+		size.bytes += graph.saved.length;
+		size.objects += graph.objects;
+		return mass;
+	}
+
+	@Benchmark
+	public Object getStories(StoryGraph graph, Size size) {
+		Mass mass = new Mass();
+		mass.load(new Input(graph.saved), STORY_FORMAT, graph.key);
+		size.bytes += graph.saved.length;
+		size.objects += graph.objects;
+		return mass.get(0, true);
+	}
+
+	@Benchmark
+	public MassFile loadSave(SaveFile file) {
+		MassFile saved = new MassFile();
+		saved.load(new Input(file.saved), file.key);
+		for(String name : saved.names())
+			saved.get(name);
+		return saved;
+	}
+
+	@Benchmark
+	public Output rebuildSave(SaveFile file, Buffer buffer) {
+		MassFile saved = new MassFile();
+		saved.load(new Input(file.saved), file.key);
+		saved.rebuild();
+		saved.save(buffer.output, file.key);
+		return buffer.output;
+	}
+}
@@ -0,0 +1,122 @@
+package sengine.sheets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing generated sheets shaped like story channels: channels of conversations made of responses, choices and waits.
+ * Measures method and field dispatch of {@link Serializer}, rows are already in memory.
+ * Run with <code>gradlew jmh -PjmhArgs=SerializerBenchmark</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializerBenchmark {
+
+	public static class Story {
+		public final List<Channel> channels = new ArrayList<>();
+
+		public void title(String title) {
+			// ignored
+		}
+
+		public void channel(Channel channel) {
+			channels.add(channel);
+		}
+	}
+
+	@SheetFields(requiredFields = { "name" })
+	public static class Channel {
+		public String name;
+		public final List<Conversation> conversations = new ArrayList<>();
+
+		public void add(Conversation conversation) {
+			conversations.add(conversation);
+		}
+	}
+
+	@SheetFields(fields = { "tags" })
+	public static class Conversation {
+		public String tags;
+		public int messages;
+		public float idleTime;
+
+		public void response(Message[] messages) {
+			this.messages += messages.length;
+		}
+
+		public void choice(Message[] messages) {
+			this.messages += messages.length;
+		}
+
+		public void wait(float seconds) {
+			idleTime += seconds;
+		}
+
+		public void allow(String tags) {
+			// ignored
+		}
+	}
+
+	@SheetFields(fields = { "message", "npc" })
+	public static class Message {
+		public String message;
+		public String npc;
+
+		public void npc(String npc) {
+			this.npc = npc.toLowerCase();
+		}
+	}
+
+	@Param({ "10000", "50000" })
+	public int rows;
+
+	String[][] sheet;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		List<String[]> sheet = new ArrayList<>(rows);
+		sheet.add(new String[] { "title", "Generated" });
+		int channel = 0;
+		while(sheet.size() < rows) {
+			sheet.add(new String[] { "channel", "name", "channel-" + channel++ });
+			for(int conversation = 0; conversation < 20 && sheet.size() < rows; conversation++) {
+				sheet.add(new String[] { null, "add", "tags", "tag-" + conversation });
+				sheet.add(new String[] { null, null, "response", "Line " + sheet.size() + " of the conversation", "Npc" });
+				sheet.add(new String[] { null, null, null, "Line " + sheet.size() + " of the conversation", "Npc" });
+				sheet.add(new String[] { null, null, null, "Line " + sheet.size() + " of the conversation", "Other" });
+				sheet.add(new String[] { null, null, "wait", "1.5" });
+				sheet.add(new String[] { null, null, "choice", "Yes", "player" });
+				sheet.add(new String[] { null, null, null, "No", "player" });
+				sheet.add(new String[] { null, null, "allow", "tag-" + (conversation + 1) });
+			}
+		}
+		this.sheet = sheet.toArray(new String[0][]);
+	}
+
+	@Benchmark
+	public Story parse() {
+		SheetParser parser = new SheetParser();
+		for(int r = 0; r < sheet.length; r++)
+			parser.addRow(r, Arrays.copyOf(sheet[r], sheet[r].length));		// rows are compacted in place
+		return parser.parse(Story.class, null);
+	}
+}
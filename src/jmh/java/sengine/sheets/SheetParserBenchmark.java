@@ -0,0 +1,126 @@
+package sengine.sheets;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading rows of a workbook with {@link SheetParser#readXLS(InputStream, String)}, compared to loading the whole
+ * workbook and evaluating every cell as it was done before. Run with <code>gradlew jmh -PjmhArgs=SheetParserBenchmark</code>,
+ * allocation per operation is reported by the gc profiler.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx1g" })
+@State(Scope.Benchmark)
+public class SheetParserBenchmark {
+
+	static final String SHEET_NAME = "main.v1";
+	static final int COLUMNS = 8;
+
+	@Param({ "main.xlsx", "10000", "100000" })
+	public String workbook;				// path of a workbook, or number of rows to generate
+
+	Path file;
+	boolean isGenerated;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		if(!workbook.chars().allMatch(Character::isDigit)) {
+			file = Paths.get(workbook);
+			return;
+		}
+		// Generate a large workbook, rows look like indented story lines
+		int rows = Integer.parseInt(workbook);
+		file = Files.createTempFile("benchmark", ".xlsx");
+		isGenerated = true;
+		SXSSFWorkbook wb = new SXSSFWorkbook(100);
+		try(OutputStream s = Files.newOutputStream(file)) {
+			Sheet sheet = wb.createSheet(SHEET_NAME);
+			for(int r = 0; r < rows; r++) {
+				Row row = sheet.createRow(r);
+				int shift = r % 4;
+				for(int c = shift; c < COLUMNS; c++) {
+					if(c == COLUMNS - 1)
+						row.createCell(c).setCellValue(r * 0.5);
+					else
+						row.createCell(c).setCellValue("value " + (r % 1000) + " " + c);
+				}
+			}
+			wb.write(s);
+		} finally {
+			wb.dispose();
+			wb.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		if(isGenerated)
+			Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public SheetParser stream() throws IOException {
+		SheetParser parser = new SheetParser();
+		try(InputStream s = new BufferedInputStream(Files.newInputStream(file))) {
+			parser.readXLS(s, SHEET_NAME);
+		}
+		return parser;
+	}
+
+	@Benchmark
+	public SheetParser workbook() throws IOException {
+		SheetParser parser = new SheetParser();
+		try(InputStream s = new BufferedInputStream(Files.newInputStream(file)); Workbook wb = new XSSFWorkbook(s)) {
+			Sheet sheet = wb.getSheet(SHEET_NAME);
+			FormulaEvaluator evaluator = wb.getCreationHelper().createFormulaEvaluator();
+			DataFormatter formatter = new DataFormatter();
+			int lastRow = sheet.getLastRowNum();
+			for(int r = 0; r <= lastRow; r++) {
+				Row row = sheet.getRow(r);
+				if(row == null || row.getLastCellNum() == -1)
+					continue;
+				String[] values = new String[row.getLastCellNum()];
+				for(int c = 0; c < values.length; c++) {
+					Cell cell = row.getCell(c, Row.MissingCellPolicy.RETURN_BLANK_AS_NULL);
+					if(cell != null) {
+						evaluator.evaluateInCell(cell);
+						values[c] = formatter.formatCellValue(cell);
+					}
+				}
+				parser.addRow(r, values);
+			}
+		}
+		return parser;
+	}
+}
@@ -0,0 +1,27 @@
+package com.kaigan.bots.narrator;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Last queued action of each target, such as a channel. Actions for the same target are sent in queue order, each
+ * waiting for the previous one to succeed or give up, while actions for different targets do not wait for each other.
+ */
+class ActionChains {
+
+    private final Map<Long, CompletableFuture<Void>> chains = new ConcurrentHashMap<>();
+
+    /**
+     * Runs send once the previous action queued for the target is done, or immediately if there is none.
+     * @param done completed when the action succeeded or gave up
+     */
+    void enqueue(long target, CompletableFuture<Void> done, Runnable send) {
+        CompletableFuture<Void> previous = chains.put(target, done);
+        done.whenComplete((result, e) -> chains.remove(target, done));
+        if(previous == null)
+            send.run();
+        else
+            previous.whenComplete((result, e) -> send.run());
+    }
+}
@@ -0,0 +1,102 @@
+package com.kaigan.bots.narrator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A format string split into literal text and <code>%(keys)</code> once, so rendering does not need to match again.
+ * Immutable, can be rendered by multiple threads at the same time.
+ */
+class FormatTemplate {
+
+    private static final Pattern RE = Pattern.compile(
+            "(%\\(([^)]+)\\))"  // Look for %(keys) to replace
+    );
+
+    private final String[] literals;        // literal text before each key, and after the last key
+    private final String[] lookups;         // keys, including @state lookups which are left to the resolver
+    private final String[] unresolved;      // original text of each key, used when it cannot be resolved
+    private final String[] emotes;          // emote name if the key is :emote:, else null
+    private final int length;               // length of all literals
+
+    static FormatTemplate compile(String format) {
+        List<String> literals = new ArrayList<>();
+        List<String> lookups = new ArrayList<>();
+        List<String> unresolved = new ArrayList<>();
+        List<String> emotes = new ArrayList<>();
+        Matcher matcher = RE.matcher(format);
+        int end = 0;
+        while(matcher.find()) {
+            String lookup = matcher.group(2);
+            literals.add(format.substring(end, matcher.start()));
+            lookups.add(lookup);
+            unresolved.add(matcher.group(0));
+            emotes.add(lookup.length() >= 2 && lookup.startsWith(":") && lookup.endsWith(":") ? lookup.substring(1, lookup.length() - 1) : null);
+            end = matcher.end();
+        }
+        literals.add(format.substring(end));
+        return new FormatTemplate(
+                literals.toArray(new String[0]),
+                lookups.toArray(new String[0]),
+                unresolved.toArray(new String[0]),
+                emotes.toArray(new String[0])
+        );
+    }
+
+    private FormatTemplate(String[] literals, String[] lookups, String[] unresolved, String[] emotes) {
+        this.literals = literals;
+        this.lookups = lookups;
+        this.unresolved = unresolved;
+        this.emotes = emotes;
+        int length = 0;
+        for(String literal : literals)
+            length += literal.length();
+        this.length = length;
+    }
+
+    boolean isLiteral() {
+        return lookups.length == 0;
+    }
+
+    /**
+     * @param emoteMentions mention of each guild emote by name
+     */
+    void render(StringBuilder sb, Map<String, String> emoteMentions, Object[] params, int length, Narrator.FormatResolver resolver) {
+        sb.ensureCapacity(sb.length() + this.length);
+        for(int c = 0; c < lookups.length; c++) {
+            sb.append(literals[c]);
+            sb.append(resolve(c, emoteMentions, params, length, resolver));
+        }
+        sb.append(literals[lookups.length]);
+    }
+
+    private String resolve(int index, Map<String, String> emoteMentions, Object[] params, int length, Narrator.FormatResolver resolver) {
+        // Resolving emote
+        if(emotes[index] != null) {
+            String mention = emoteMentions.get(emotes[index]);
+            if(mention != null)
+                return mention;
+        }
+        // Use given parameters, last one wins if a name was given multiple times
+        String lookup = lookups[index];
+        for(int c = length - 2; c >= 0; c -= 2) {
+            if(!lookup.equals(params[c]))
+                continue;
+            Object value = params[c + 1];
+            if(value != null)
+                return value.toString();
+            break;
+        }
+        // Else us resolver if available
+        if(resolver != null) {
+            String resolved = resolver.resolve(lookup);
+            if(resolved != null)
+                return resolved;
+        }
+        // Else wasn't able to resolve, just return unchanged
+        return unresolved[index];
+    }
+}
@@ -6,6 +6,9 @@ import net.dv8tion.jda.api.JDABuilder;
 import net.dv8tion.jda.api.entities.*;
 import net.dv8tion.jda.api.events.DisconnectEvent;
 import net.dv8tion.jda.api.events.ReconnectedEvent;
+import net.dv8tion.jda.api.events.emote.EmoteAddedEvent;
+import net.dv8tion.jda.api.events.emote.EmoteRemovedEvent;
+import net.dv8tion.jda.api.events.emote.update.EmoteUpdateNameEvent;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
 import net.dv8tion.jda.api.events.guild.member.update.GuildMemberUpdateNicknameEvent;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
@@ -23,40 +26,74 @@ import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import sengine.mass.Mass;
+import sengine.mass.MassCodec;
 import sengine.mass.MassFile;
 import sengine.mass.io.Input;
 import sengine.mass.io.Output;
 import sengine.sheets.ParseException;
 
 import javax.annotation.Nonnull;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 public class Narrator extends ListenerAdapter {
     private static final Logger log = LogManager.getLogger("Narrator");
 
-    private static final long QUEUE_RETRY_INTERVAL = 10 * 1000;       // 10 seconds
+    private static final long QUEUE_RETRY_INTERVAL = 1000;       // 1 second, doubled on each retry
+    private static final long QUEUE_MAX_RETRY_INTERVAL = 30 * 1000;       // 30 seconds
     private static final long QUEUE_MAX_TRIES = 6;         // 6 times
 
+    private static final String SAVE_JOURNAL_EXTENSION = ".journal";
+    private static final int SAVE_RECORD_HEADER_SIZE = 4 + 8;        // size and checksum
+    private static final int SAVE_BUFFER_SIZE = 64 * 1024;
+
+    private static final String DOWNLOAD_TEMP_SUFFIX = ".tmp";
+    private static final long DOWNLOAD_EVICT_GRACE = 10 * 60 * 1000;        // 10 minutes
+
     public static final OkHttpClient okHttpClient = new OkHttpClient();
 
-    private static final Pattern RE = Pattern.compile(
-            "(%\\(([^)]+)\\))"  // Look for %(keys) to replace
-    );
+    private static final int FORMAT_CACHE_MAX_SIZE = 16384;
+
+    private static final String CHOICE_EMOTE_PREFIX = "choice";
+
+    private static class LaneScheduler extends ScheduledThreadPoolExecutor {
+        private volatile Thread thread;
+
+        LaneScheduler(String name) {
+            super(1);
+            // Remember the only thread of this lane so that callers can tell if they are already on it
+            setThreadFactory(runnable -> {
+                thread = new Thread(runnable, name);
+                return thread;
+            });
+        }
+
+        boolean isCurrentThread() {
+            return Thread.currentThread() == thread;
+        }
 
-    public final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1) {
         @Override
         protected void afterExecute(Runnable r, Throwable t) {
             super.afterExecute(r, t);
@@ -75,8 +112,133 @@ public class Narrator extends ListenerAdapter {
             if (t != null)
                 log.error("Exception in scheduler", t);
         }
-    };
+    }
+
+    private static class EmoteIndex {
+        final Map<String, Emote> emotes = new HashMap<>();
+        final Map<String, String> mentions = new HashMap<>();
+        final Emote[] choices;          // choice1 at 0, null if missing
+
+        EmoteIndex(List<Emote> guildEmotes) {
+            int maxChoice = 0;
+            for(Emote emote : guildEmotes) {
+                String name = emote.getName();
+                if(emotes.putIfAbsent(name, emote) != null)
+                    continue;       // first emote wins, same as getEmotesByName
+                mentions.put(name, emote.getAsMention());
+                maxChoice = Math.max(maxChoice, parseChoice(name));
+            }
+            choices = new Emote[maxChoice];
+            for(int c = 0; c < maxChoice; c++)
+                choices[c] = emotes.get(CHOICE_EMOTE_PREFIX + (c + 1));
+        }
+
+        static int parseChoice(String name) {
+            // Only names that getChoiceEmote would have asked for
+            if(!name.startsWith(CHOICE_EMOTE_PREFIX))
+                return 0;
+            String number = name.substring(CHOICE_EMOTE_PREFIX.length());
+            try {
+                int choice = Integer.parseInt(number);
+                return choice > 0 && number.equals(Integer.toString(choice)) ? choice : 0;
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    interface ServiceEvent {
+        boolean process(NarratorService service);
+    }
+
+    private class QueuedAction<T> implements NarratorService {
+        final Object dispatchKey;
+        final Supplier<RestAction<T>> restActionSupplier;
+        final Logger log;
+        final String description;
+        final Consumer<T> success;
+
+        // Completed when this action succeeded or gave up, next action in the chain waits for this
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        RestAction<T> action;           // created when queued, created again for each retry
+        int tries = 0;
+
+        QueuedAction(Object dispatchKey, Supplier<RestAction<T>> restActionSupplier, Logger log, String description, Consumer<T> success) {
+            this.dispatchKey = dispatchKey;
+            this.restActionSupplier = restActionSupplier;
+            this.log = log;
+            this.description = description;
+            this.success = success;
+            action = create();
+        }
+
+        private RestAction<T> create() {
+            try {
+                return restActionSupplier.get();
+            } catch (Throwable e) {
+                log.error("Unable to create action for: " + description, e);
+                return null;
+            }
+        }
+
+        @Override
+        public Object getDispatchKey() {
+            return dispatchKey;     // callbacks and retries re-enter the lane that queued this action
+        }
+
+        @Override
+        public long processService(Narrator bot) {
+            // Try
+            if(tries > 0)
+                action = create();
+            if(action == null) {
+                done.complete(null);        // nothing to send or already logged
+                return -1;
+            }
+            // Submit without waiting, outcome is handled back on the owning lane
+            CompletableFuture<T> submitted;
+            try {
+                submitted = action.submit();
+            } catch (Throwable e) {
+                processOutcome(null, e);        // rejected before it was sent
+                return -1;
+            }
+            submitted.whenComplete((outcome, e) -> execute(this, () -> processOutcome(outcome, e)));
+            return -1;
+        }
+
+        private void processOutcome(T outcome, Throwable e) {
+            if(e == null) {
+                try {
+                    if(success != null)
+                        success.accept(outcome);
+                } finally {
+                    done.complete(null);
+                }
+                return;
+            }
+            // Else failed
+            tries++;
+            if(tries >= QUEUE_MAX_TRIES) {
+                // Failed and give up
+                log.error("Action failed after " + tries + " tries for: " + description, e);
+                done.completeExceptionally(e);
+                return;      // stop
+            }
+            // Else try again with exponential backoff and jitter
+            actionsRetried.increment();
+            long interval = Math.min(QUEUE_RETRY_INTERVAL << (tries - 1), QUEUE_MAX_RETRY_INTERVAL);
+            long delay = interval / 2 + ThreadLocalRandom.current().nextLong(interval / 2 + 1);
+            log.warn("Waiting " + delay + "ms and retrying " + (tries + 1) + " times for: " + description, e);
+            scheduleService(this, delay);
+        }
+    }
+
+    public final ScheduledExecutorService scheduler = new LaneScheduler("Narrator");
     public final ExecutorService executor = Executors.newCachedThreadPool();
+    // JDA pools shared by other bots logged in by services, shut down with this bot
+    public final ScheduledExecutorService gatewayPool = Executors.newScheduledThreadPool(2);
+    public final ScheduledExecutorService rateLimitPool = Executors.newScheduledThreadPool(4);
 
     public final NarratorBuilder builder;
 
@@ -86,27 +248,54 @@ public class Narrator extends ListenerAdapter {
     public final JDA jda;
     public final Guild guild;
 
-    private final Map<NarratorService, ScheduledFuture<?>> scheduledServices = new HashMap<>();
-    private final List<NarratorService> services = new ArrayList<>();
-    private final List<NarratorService> servicesIterator = new ArrayList<>();
+    // Guild emotes by name, replaced whenever guild emotes change
+    private volatile EmoteIndex emoteIndex = new EmoteIndex(Collections.emptyList());
 
-    private final Map<String, Object> textFormatLookup = new HashMap<>();
+    // Optional serial lanes for services with a dispatch key, null if all services run on the scheduler
+    private volatile LaneScheduler[] lanes = null;
+    private final ThreadLocal<Object> currentDispatchKey = new ThreadLocal<>();
+
+    // Outbound counters
+    public final LongAdder actionsSaved = new LongAdder();          // actions avoided by merging them into other actions
+    public final LongAdder actionsPipelined = new LongAdder();      // actions sent without waiting for the previous one
+    public final LongAdder actionsRetried = new LongAdder();        // failed actions, including rate limited ones
+
+    // Queued actions are sent in order for each channel
+    private final ActionChains actionChains = new ActionChains();
+
+    private final Map<NarratorService, ScheduledFuture<?>> scheduledServices = new ConcurrentHashMap<>();
+    // Started services, replaced on write so they can be added and removed from any thread and events iterate a snapshot
+    private final AtomicReference<NarratorService[]> services = new AtomicReference<>(ServiceRoutes.EMPTY);
+    private final Map<Class<?>, NarratorService[]> servicesByType = new ConcurrentHashMap<>();
+    private final Set<NarratorService> startingServices = ConcurrentHashMap.newKeySet();       // removed if stopped while starting
+    private final Map<Long, NarratorService> messageRoutes = new ConcurrentHashMap<>();      // owner of each interactive message
+    private final ServiceRoutes channelRoutes = new ServiceRoutes();            // services receiving guild messages by channel
+
+    private final Map<String, FormatTemplate> formatTemplates = new ConcurrentHashMap<>();
+    private final ThreadLocal<StringBuilder> formatBuilder = ThreadLocal.withInitial(StringBuilder::new);
 
     private final MassFile saved = new MassFile();
 
+    private final Map<String, CompletableFuture<String>> downloads = new ConcurrentHashMap<>();
+
+    private Set<String> savedChanges = new HashSet<>();          // names changed since last save, guarded by saved
+    private long savedChecksum = -1;        // checksum of the save file that the journal applies to, -1 if not saved yet
+
     private final NarratorService queuedSaveService = new NarratorService() {
         @Override
         public long processService(Narrator bot) {
             // Write save
             Path path = Paths.get(builder.saveFilePath);
+            Path journal = Paths.get(builder.saveFilePath + SAVE_JOURNAL_EXTENSION);
             try {
                 // Mkdirs
                 if (path.getParent() != null)
                     Files.createDirectories(path.getParent());
-                try (FileOutputStream saveFile = new FileOutputStream(path.toString(), false)) {
-                    saved.rebuild();
-                    saved.save(new Output(saveFile), builder.key);
-                }
+                // Append changes to journal if enabled, else compact everything into the save file
+                if(builder.saveJournalMaxSize > 0 && savedChecksum != -1 && (!Files.exists(journal) || Files.size(journal) < builder.saveJournalMaxSize))
+                    appendJournal(journal);
+                else
+                    compactSave(path, journal);
             }
             catch(Throwable e) {
                 log.error("Unable to save: " + builder.saveFilePath, e);
@@ -115,12 +304,147 @@ public class Narrator extends ListenerAdapter {
         }
     };
 
+    private void appendJournal(Path journal) throws IOException {
+        Set<String> changes;
+        Output record = new Output(SAVE_BUFFER_SIZE);
+        synchronized (saved) {
+            changes = savedChanges;
+            savedChanges = new HashSet<>();
+            saved.saveEntries(record, builder.key, changes);
+        }
+
+        try (FileChannel file = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            if(!readFully(file, header) || header.getLong(0) != savedChecksum) {
+                // New journal, or a stale one left behind when compacting could not delete it, start over for the
+                // current save file as replaying would discard records appended to a stale journal
+                if(file.size() > 0)
+                    log.warn("Replacing stale save journal: " + journal);
+                file.truncate(0);
+                file.position(0);
+                header = ByteBuffer.allocate(8 + SAVE_RECORD_HEADER_SIZE).putLong(savedChecksum);
+            }
+            else {
+                file.position(file.size());
+                header = ByteBuffer.allocate(SAVE_RECORD_HEADER_SIZE);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(record.getBuffer(), 0, record.position());
+            header.putInt(record.position()).putLong(crc.getValue()).flip();
+            writeFully(file, header);
+            writeFully(file, ByteBuffer.wrap(record.getBuffer(), 0, record.position()));
+            file.force(false);
+        } catch (Throwable e) {
+            // Retry these changes on next save
+            synchronized (saved) {
+                savedChanges.addAll(changes);
+            }
+            throw e;
+        }
+    }
+
+    private void compactSave(Path path, Path journal) throws IOException {
+        Set<String> changes;
+        Output snapshot = new Output(SAVE_BUFFER_SIZE);
+        synchronized (saved) {
+            changes = savedChanges;
+            savedChanges = new HashSet<>();
+            saved.rebuild();
+            saved.save(snapshot, builder.key);
+        }
+
+        // Write to a temporary file first so that a crash never leaves a partial save file
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                writeFully(file, ByteBuffer.wrap(snapshot.getBuffer(), 0, snapshot.position()));
+                file.force(true);
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            // The rename must be durable before the journal is deleted
+            forceDirectory(path.toAbsolutePath().getParent());
+        } catch (Throwable e) {
+            Files.deleteIfExists(temp);
+            synchronized (saved) {
+                savedChanges.addAll(changes);
+            }
+            throw e;
+        }
+
+        // Existing journal no longer matches the save file, even if this delete does not happen
+        savedChecksum = checksum(snapshot.getBuffer(), 0, snapshot.position());
+        Files.deleteIfExists(journal);
+    }
+
+    private void replayJournal(Path journal) throws IOException {
+        try (FileChannel file = FileChannel.open(journal, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            if(!readFully(file, header) || header.getLong(0) != savedChecksum) {
+                log.warn("Ignoring stale save journal: " + journal);
+                file.truncate(0);
+                return;
+            }
+            // Apply all complete records, a crash might have left a partial record at the end
+            long valid = file.position();
+            header = ByteBuffer.allocate(SAVE_RECORD_HEADER_SIZE);
+            while(readFully(file, header.clear())) {
+                int size = header.getInt(0);
+                if(size <= 0 || size > file.size() - file.position())
+                    break;
+                ByteBuffer record = ByteBuffer.allocate(size);
+                if(!readFully(file, record) || checksum(record.array(), 0, size) != header.getLong(4))
+                    break;
+                synchronized (saved) {
+                    saved.loadEntries(new Input(record.array()), builder.key);
+                }
+                valid = file.position();
+            }
+            if(valid != file.size()) {
+                log.warn("Discarding " + (file.size() - valid) + " bytes of incomplete save journal: " + journal);
+                file.truncate(valid);
+            }
+        }
+    }
+
+    private static long checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return crc.getValue();
+    }
+
+    private static boolean readFully(FileChannel file, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(file.read(buffer) == -1)
+                return false;
+        }
+        return true;
+    }
+
+    private static void writeFully(FileChannel file, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining())
+            file.write(buffer);
+    }
+
+    private static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (AccessDeniedException | UnsupportedOperationException e) {
+            // Directories cannot be opened or synced on some platforms, such as Windows
+            log.debug("Unable to sync directory " + directory, e);
+        }
+    }
+
     public <T> Optional<T> getSave(String name) {
-        return Optional.ofNullable(saved.get(name));
+        synchronized (saved) {
+            return Optional.ofNullable(saved.get(name));
+        }
     }
 
     public void putSave(String name, Object object) {
-        saved.add(name, object);
+        synchronized (saved) {
+            saved.add(name, object);
+            savedChanges.add(name);
+        }
 
         // Queue save if havent yet
         long delay = getServiceDelay(queuedSaveService);
@@ -129,33 +453,85 @@ public class Narrator extends ListenerAdapter {
     }
 
     public void reloadSave() {
+        // Save is written often, speed can be preferred over size once older builds no longer need to read it
+        synchronized (saved) {
+            saved.setCodec(builder.saveFileFastCodec ? MassCodec.LZ : Mass.defaultCodec);
+        }
+
         // Read save
         Path path = Paths.get(builder.saveFilePath);
         if(Files.exists(path)) {
             // Load save
-            try(FileInputStream saveFile = new FileInputStream(builder.saveFilePath)) {
-                saved.load(new Input(saveFile), builder.key);
+            try {
+                byte[] snapshot = Files.readAllBytes(path);
+                synchronized (saved) {
+                    saved.load(new Input(snapshot), builder.key);
+                }
+                savedChecksum = checksum(snapshot, 0, snapshot.length);
+
+                // Apply changes saved after
+                Path journal = Paths.get(builder.saveFilePath + SAVE_JOURNAL_EXTENSION);
+                if(Files.exists(journal))
+                    replayJournal(journal);
             } catch(Throwable e) {
                 throw new RuntimeException("Unable to load save: " + builder.saveFilePath, e);
             }
         }
     }
 
+    /**
+     * Returns the local path of a downloaded url, waiting for the download if needed.
+     */
     public String getFile(String url) {
-        String id = DigestUtils.sha256Hex(url);
+        try {
+            return prefetchFile(url).join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof ParseException)
+                throw (ParseException) e.getCause();
+            throw new ParseException("Failed to download file from " + url, e.getCause());
+        }
+    }
+
+    /**
+     * Starts downloading a url in the background, concurrent requests for the same url share one download.
+     */
+    public CompletableFuture<String> prefetchFile(String url) {
+        Path path = Paths.get(builder.downloadPath, DigestUtils.sha256Hex(url));
 
         // Check if file exists
-        Path path = Paths.get(builder.downloadPath, id);
+        if(Files.exists(path)) {
+            touchFile(path);
+            return CompletableFuture.completedFuture(path.toString());
+        }
+
+        // Else join or start download
+        CompletableFuture<String> download = new CompletableFuture<>();
+        CompletableFuture<String> existing = downloads.putIfAbsent(url, download);
+        if(existing != null)
+            return existing;
+        executor.execute(() -> {
+            try {
+                download.complete(downloadFile(url, path));
+            } catch (Throwable e) {
+                download.completeExceptionally(e);
+            } finally {
+                downloads.remove(url, download);
+            }
+        });
+        return download;
+    }
+
+    private String downloadFile(String url, Path path) {
         if(Files.exists(path))
-            return path.toString();
+            return path.toString();     // finished by a previous download
 
         log.info("Downloading file: " + url);
 
-        // Else download now
         Request request = new Request.Builder()
                 .url(url)
                 .build();
 
+        Path temp = null;
         try (Response response = okHttpClient.newCall(request).execute()) {
             if (!response.isSuccessful())
                 throw new ParseException("Error " + response + " while downloading from " + url);
@@ -164,23 +540,84 @@ public class Narrator extends ListenerAdapter {
             if(path.getParent() != null)
                 Files.createDirectories(path.getParent());
 
-            try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Write to a temporary file first so that partial downloads are never visible
+            temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), DOWNLOAD_TEMP_SUFFIX);
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)) {
                 long size = file.transferFrom(Channels.newChannel(response.body().byteStream()), 0, builder.downloadMaxSize + 1);
                 if(size == 0)
                     throw new ParseException("Empty file from " + url);
-                if(file.position() > builder.downloadMaxSize)
+                if(size > builder.downloadMaxSize)
                     throw new ParseException("File from " + url + " exceeds max limit of " + builder.downloadMaxSize + " bytes");
 
-                log.info("Downloaded file " + id + " with " + size + " bytes");
+                log.info("Downloaded file " + path.getFileName() + " with " + size + " bytes");
             }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            temp = null;
 
         } catch (Throwable e) {
             throw new ParseException("Failed to download file from " + url, e);
+        } finally {
+            if(temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (Throwable e) {
+                    log.warn("Unable to delete " + temp, e);
+                }
+            }
         }
 
+        evictDownloads(path);
+
         return path.toString();
     }
 
+    private void touchFile(Path path) {
+        // Last modified time is used as last access time for eviction
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (Throwable e) {
+            log.warn("Unable to touch " + path, e);
+        }
+    }
+
+    private void evictDownloads(Path downloaded) {
+        if(builder.downloadCacheMaxSize <= 0)
+            return;     // unbounded
+        synchronized (downloads) {
+            try {
+                // Collect all completed downloads, oldest first
+                List<Path> files;
+                try (Stream<Path> list = Files.list(downloaded.toAbsolutePath().getParent())) {
+                    files = list.filter(file -> !file.getFileName().toString().endsWith(DOWNLOAD_TEMP_SUFFIX))
+                            .collect(Collectors.toList());
+                }
+                Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+                long total = 0;
+                for(Path file : files) {
+                    BasicFileAttributes attribute = Files.readAttributes(file, BasicFileAttributes.class);
+                    attributes.put(file, attribute);
+                    total += attribute.size();
+                }
+                files.sort(Comparator.comparing(file -> attributes.get(file).lastModifiedTime()));
+
+                // Remove least recently used files until within budget, recently used files might still be in use
+                long evictBefore = System.currentTimeMillis() - DOWNLOAD_EVICT_GRACE;
+                for(Path file : files) {
+                    if(total <= builder.downloadCacheMaxSize)
+                        break;
+                    BasicFileAttributes attribute = attributes.get(file);
+                    if(attribute.lastModifiedTime().toMillis() > evictBefore)
+                        break;      // everything after is newer
+                    Files.deleteIfExists(file);
+                    total -= attribute.size();
+                    log.info("Evicted downloaded file " + file.getFileName() + " with " + attribute.size() + " bytes");
+                }
+            } catch (Throwable e) {
+                log.warn("Unable to evict downloads", e);
+            }
+        }
+    }
+
     public interface FormatResolver {
         String resolve(String identifier);
     }
@@ -205,7 +642,16 @@ public class Narrator extends ListenerAdapter {
      * @return The formatted string.
      */
     public String format(String format, Object ... params) {
-        // Store parameters
+        // Compile once, templates come from sheets so there are only so many of them
+        FormatTemplate template = formatTemplates.get(format);
+        if(template == null) {
+            if(formatTemplates.size() >= FORMAT_CACHE_MAX_SIZE)
+                formatTemplates.clear();
+            template = FormatTemplate.compile(format);
+            formatTemplates.put(format, template);
+        }
+        if(template.isLiteral())
+            return format;
         int length = params.length;
         FormatResolver resolver = null;
         if(length % 2 == 1) {
@@ -213,46 +659,32 @@ public class Narrator extends ListenerAdapter {
             resolver = (FormatResolver) params[length - 1];
             length--;
         }
-        for(int c = 0; c < length; c+= 2) {
-            String name = (String) params[c];
-            Object value = params[c + 1];
-            textFormatLookup.put(name, value);
-        }
-        FormatResolver finalResolver = resolver;
-        String formatted = RE.matcher(format).replaceAll(match -> {
-                    String lookup = match.group(2);
-                    if(lookup.startsWith(":") && lookup.endsWith(":")) {
-                        // Resolving emote
-                        String emote = lookup.substring(1, lookup.length() - 1);
-                        List<Emote> emotes = guild.getEmotesByName(emote, false);
-                        if(!emotes.isEmpty())
-                            return emotes.get(0).getAsMention();
-                    }
-                    // Use given format lookup
-                    Object resolvedLookup = textFormatLookup.get(lookup);
-                    if(resolvedLookup != null)
-                        return resolvedLookup.toString();
-                    // Else us resolver if available
-                    if(finalResolver != null) {
-                        String resolved = finalResolver.resolve(lookup);
-                        if(resolved != null)
-                            return resolved;
-                    }
-                    // Else wasn't able to resolve, just return unchanged
-                    return match.group(0);
-                }
-        );
-        // Reset
-        textFormatLookup.clear();
-        return formatted;
+        // Reuse builder, unless a resolver is formatting recursively
+        StringBuilder sb = formatBuilder.get();
+        if(sb == null)
+            sb = new StringBuilder();
+        else
+            formatBuilder.set(null);
+        try {
+            template.render(sb, emoteIndex.mentions, params, length, resolver);
+            return sb.toString();
+        } finally {
+            sb.setLength(0);
+            formatBuilder.set(sb);
+        }
     }
 
     public Optional<Emote> getChoiceEmote(int index) {
-        return getEmote("choice" + (index + 1));
+        Emote[] choices = emoteIndex.choices;
+        return Optional.ofNullable(index >= 0 && index < choices.length ? choices[index] : null);
     }
 
     public Optional<Emote> getEmote(String name) {
-        return guild.getEmotesByName(name, false).stream().findAny();
+        return Optional.ofNullable(emoteIndex.emotes.get(name));
+    }
+
+    private void refreshEmotes() {
+        emoteIndex = new EmoteIndex(guild.getEmotes());
     }
 
 //    public String formatChoices(List<String> options) {
@@ -265,58 +697,119 @@ public class Narrator extends ListenerAdapter {
 //        return sb.toString();
 //    }
 
-    public <T> void queue(Supplier<RestAction<T>> restActionSupplier, Logger log, String description) {
-        schedule(-1, restActionSupplier, log, description, null);
+    /**
+     * Queues an action for the target, usually the channel it is sent to. Actions for the same target are sent in
+     * queue order, each waiting for the previous one to succeed or give up, while other targets are not affected.
+     * The action is created when queued, so formatted text reflects the state at that time. Retries create it again.
+     */
+    public <T> void queue(ISnowflake target, Supplier<RestAction<T>> restActionSupplier, Logger log, String description) {
+        schedule(-1, target, restActionSupplier, log, description, null);
     }
 
-    public <T> void queue(Supplier<RestAction<T>> restActionSupplier, Logger log, String description, Consumer<T> success) {
-        schedule(-1, restActionSupplier, log, description, success);
+    public <T> void queue(ISnowflake target, Supplier<RestAction<T>> restActionSupplier, Logger log, String description, Consumer<T> success) {
+        schedule(-1, target, restActionSupplier, log, description, success);
     }
 
-    public <T> void schedule(long delay, Supplier<RestAction<T>> restActionSupplier, Logger log, String description) {
-        schedule(delay, restActionSupplier, log, description, null);
+    public <T> void schedule(long delay, ISnowflake target, Supplier<RestAction<T>> restActionSupplier, Logger log, String description) {
+        schedule(delay, target, restActionSupplier, log, description, null);
     }
 
-    public <T> void schedule(long delay, Supplier<RestAction<T>> restActionSupplier, Logger log, String description, Consumer<T> success) {
-        new NarratorService() {
-            int tries = 0;
+    public <T> void schedule(long delay, ISnowflake target, Supplier<RestAction<T>> restActionSupplier, Logger log, String description, Consumer<T> success) {
+        QueuedAction<T> queued = new QueuedAction<>(currentDispatchKey.get(), restActionSupplier, log, description, success);
+        List<QueuedAction<?>> group = Collections.singletonList(queued);
+        long chain = target.getIdLong();
+        if(delay <= 0)
+            enqueue(chain, group);
+        else
+            getScheduler(queued).schedule(() -> enqueue(chain, group), delay, TimeUnit.MILLISECONDS);
+    }
 
-            void send() {
-                if(delay <= 0)
-                    processService(Narrator.this);
-                else
-                    scheduleService(this, delay);
-            }
+    /**
+     * Queues independent actions which are sent together without waiting for each other, such as reactions on the same message.
+     * The group as a whole is still ordered with other actions queued for the same target.
+     */
+    public <T> void queueAll(ISnowflake target, List<Supplier<RestAction<T>>> restActionSuppliers, Logger log, String description) {
+        if(restActionSuppliers.isEmpty())
+            return;
+        Object dispatchKey = currentDispatchKey.get();
+        List<QueuedAction<?>> group = new ArrayList<>(restActionSuppliers.size());
+        for(Supplier<RestAction<T>> restActionSupplier : restActionSuppliers)
+            group.add(new QueuedAction<>(dispatchKey, restActionSupplier, log, description, null));
+        actionsPipelined.add(group.size() - 1);
+        enqueue(target.getIdLong(), group);
+    }
 
-            @Override
-            public long processService(Narrator bot) {
-                // Try
-                RestAction<T> action = restActionSupplier.get();
-                if(action == null)
-                    return -1;
-                try {
-                    T outcome = action.complete();
-                    if(success != null)
-                        success.accept(outcome);
-                    return -1;
-                } catch (Throwable e) {
-                    // Else failed
-                    tries++;
-                    if(tries >= QUEUE_MAX_TRIES) {
-                        // Failed and give up
-                        log.error("Action failed after " + tries + " tries for: " + description, e);
-                        return -1;      // stop
-                    }
-                    // Else try again
-                    log.warn("Waiting and retrying " + (tries + 1) + " times for: " + description, e);
-                    return QUEUE_RETRY_INTERVAL;
-                }
-            }
-        }.send();
+    private void enqueue(long chain, List<QueuedAction<?>> group) {
+        // Wait for previous action for the same target to finish before sending
+        CompletableFuture<Void> done;
+        if(group.size() == 1)
+            done = group.get(0).done;
+        else
+            done = CompletableFuture.allOf(group.stream().map(queued -> queued.done).toArray(CompletableFuture[]::new));
+        actionChains.enqueue(chain, done, () -> {
+            for(QueuedAction<?> queued : group)
+                execute(queued, () -> queued.processService(this));
+        });
+    }
+
+    public void startDispatchLanes(int count) {
+        if(count <= 0)
+            throw new IllegalArgumentException("dispatch lanes must be positive");
+        if(lanes != null)
+            throw new IllegalStateException("dispatch lanes already started");
+        LaneScheduler[] created = new LaneScheduler[count];
+        for(int c = 0; c < count; c++)
+            created[c] = new LaneScheduler("Narrator-lane-" + c);
+        lanes = created;
+        log.info("Started {} dispatch lanes", count);
+    }
+
+    public ScheduledExecutorService getScheduler(NarratorService service) {
+        LaneScheduler[] lanes = this.lanes;
+        Object key = service.getDispatchKey();
+        if(lanes == null || key == null)
+            return scheduler;
+        return lanes[laneIndex(key, lanes.length)];
+    }
+
+    /**
+     * Lane of a dispatch key, equal keys always map to the same lane.
+     */
+    static int laneIndex(Object key, int lanes) {
+        return Math.floorMod(key.hashCode(), lanes);
+    }
+
+    public void execute(NarratorService service, Runnable task) {
+        LaneScheduler lane = (LaneScheduler) getScheduler(service);
+        Object key = service.getDispatchKey();
+        if(lane.isCurrentThread() && Objects.equals(key, currentDispatchKey.get()))
+            task.run();         // already on the lane of this service
+        else
+            lane.execute(() -> runAs(key, task));
+    }
+
+    private void runAs(Object key, Runnable task) {
+        Object previous = currentDispatchKey.get();
+        currentDispatchKey.set(key);
+        try {
+            task.run();
+        } finally {
+            if(previous != null)
+                currentDispatchKey.set(previous);       // nested, such as a service added by another service
+            else
+                currentDispatchKey.remove();
+        }
     }
 
     public boolean hasServiceStarted(NarratorService service) {
-        return services.contains(service);
+        NarratorService[] typed = servicesByType.get(service.getClass());
+        if(typed == null)
+            return false;
+        for(NarratorService started : typed) {
+            if(started == service)
+                return true;
+        }
+        return false;
     }
 
     public long getServiceDelay(NarratorService service) {
@@ -326,48 +819,161 @@ public class Narrator extends ListenerAdapter {
         return -1;      // not found or has run
     }
 
+    /**
+     * Starts the service on the calling thread, as if it was on its own lane, so it has started once this returns.
+     * Events and processing are then delivered on its lane. Services sharing a dispatch key with started services
+     * must be added from that lane.
+     */
     public void addService(NarratorService service) {
-        long initialDelay = service.onServiceStart(this);
-        if(!scheduledServices.containsKey(service))
-            scheduleService(service, initialDelay);
-        services.add(service);
+        startingServices.add(service);
+        runAs(service.getDispatchKey(), () -> {
+            long initialDelay = service.onServiceStart(this);
+            if(!scheduledServices.containsKey(service))
+                scheduleService(service, initialDelay);
+        });
+        servicesByType.compute(service.getClass(), (type, typed) -> typed == null ? new NarratorService[] { service } : ServiceRoutes.append(typed, service));
+        services.updateAndGet(started -> ServiceRoutes.append(started, service));
+        if(!service.isMessageRouted())
+            channelRoutes.addCatchAll(service);
+        // Undo if stopped from any thread while starting
+        if(!startingServices.remove(service))
+            unregisterService(service);
     }
 
     public void scheduleService(NarratorService service, long delay) {
-        // Stop existing scheduled service if exists
-        ScheduledFuture<?> scheduled = scheduledServices.remove(service);
-        if(scheduled != null)
-            scheduled.cancel(false);        // no need to interrupt as should be same thread
-        // Reschedule next
-        if(delay >= 0) {
-            scheduled = scheduler.schedule(() -> {
-                // Remove scheduled future first
-                scheduledServices.remove(service);
+        // Replaced atomically, so a service scheduled from multiple threads only keeps the last schedule
+        scheduledServices.compute(service, (s, scheduled) -> {
+            // Stop existing scheduled service if exists
+            if(scheduled != null)
+                scheduled.cancel(false);        // no need to interrupt as should be same thread
+            if(delay < 0)
+                return null;
+            // Reschedule next
+            Object key = service.getDispatchKey();
+            ScheduledFuture<?>[] next = new ScheduledFuture<?>[1];
+            next[0] = getScheduler(service).schedule(() -> runAs(key, () -> {
+                // Remove scheduled future first, waits until it was mapped
+                scheduledServices.computeIfPresent(service, (k, future) -> future == next[0] ? null : future);
                 long nextDelay = service.processService(this);
                 if(nextDelay >= 0) {
                     // Reschedule again
                     scheduleService(service, nextDelay);
                 }
-            }, delay, TimeUnit.MILLISECONDS);
-            scheduledServices.put(service, scheduled);
-        }
+            }), delay, TimeUnit.MILLISECONDS);
+            return next[0];
+        });
     }
 
     public boolean removeService(NarratorService service) {
         if(!service.onServiceStop(this))
             return false;
-        scheduleService(service, -1);       // stop scheduled
-        services.remove(service);
+        startingServices.remove(service);
+        unregisterService(service);
         return true;
     }
 
+    private void unregisterService(NarratorService service) {
+        scheduleService(service, -1);       // stop scheduled
+        services.updateAndGet(started -> {
+            NarratorService[] removed = ServiceRoutes.remove(started, service);
+            return removed != null ? removed : ServiceRoutes.EMPTY;
+        });
+        servicesByType.computeIfPresent(service.getClass(), (type, typed) -> ServiceRoutes.remove(typed, service));
+        messageRoutes.values().removeIf(owner -> owner == service);
+        channelRoutes.removeService(service);
+    }
+
+    /**
+     * Delivers guild messages of the channel to the service, until unregistered or the service is removed.
+     */
+    public void registerChannel(long channelId, NarratorService service) {
+        channelRoutes.add(channelId, service);
+    }
+
+    public void unregisterChannel(long channelId, NarratorService service) {
+        channelRoutes.remove(channelId, service);
+    }
+
+    /**
+     * Routes guild reactions to the message directly to the service, until unregistered or the service is removed.
+     */
+    public void registerMessage(long messageId, NarratorService service) {
+        messageRoutes.put(messageId, service);
+    }
+
+    public void unregisterMessage(long messageId, NarratorService service) {
+        messageRoutes.remove(messageId, service);
+    }
+
+    private void dispatchReaction(long messageId, ServiceEvent event) {
+        NarratorService owner = messageRoutes.get(messageId);
+        if(owner != null)
+            execute(owner, () -> event.process(owner));         // only the owner is interested
+        else
+            dispatchEvent(service -> !service.isReactionRouted() && event.process(service));
+    }
+
     public <T extends NarratorService> Stream<T> getServices(Class<T> type) {
-        return services.stream()
-                .filter(service -> service.getClass() == type)
+        NarratorService[] typed = servicesByType.get(type);         // only services of exactly this class
+        if(typed == null)
+            return Stream.empty();
+        return Arrays.stream(typed)
                 .map(service -> (T)service)
                 ;
     }
 
+    private void dispatchEvent(ServiceEvent event) {
+        // Inform services, snapshot is never modified
+        dispatchEvent(Arrays.asList(services.get()), event);
+    }
+
+    private void dispatchEvent(List<NarratorService> targets, ServiceEvent event) {
+        dispatchEvent(targets, service -> processAs(service, event), service -> {
+            ScheduledExecutorService lane = getScheduler(service);
+            return lane != scheduler ? lane : null;
+        });
+    }
+
+    /**
+     * Services without a lane receive the event first on the calling thread, in order. Unless one of them absorbs it,
+     * services with a lane then receive it on their own lane, where it can only be absorbed within that lane.
+     * @param laneOf lane of a service, or null to process on the calling thread
+     */
+    static void dispatchEvent(List<NarratorService> targets, ServiceEvent event, Function<NarratorService, Executor> laneOf) {
+        Map<Executor, List<NarratorService>> partitions = null;
+        for(NarratorService service : targets) {
+            Executor lane = laneOf.apply(service);
+            if(lane != null) {
+                if(partitions == null)
+                    partitions = new IdentityHashMap<>();
+                partitions.computeIfAbsent(lane, k -> new ArrayList<>()).add(service);
+            }
+            else if(event.process(service))
+                return;         // absorbed, services on lanes do not receive it either
+        }
+        if(partitions == null)
+            return;         // no services on lanes
+        partitions.forEach((lane, partition) -> lane.execute(() -> {
+            for(NarratorService service : partition) {
+                if(event.process(service))
+                    return;     // absorbed
+            }
+        }));
+    }
+
+    private boolean processAs(NarratorService service, ServiceEvent event) {
+        Object previous = currentDispatchKey.get();
+        currentDispatchKey.set(service.getDispatchKey());
+        try {
+            return event.process(service);
+        } finally {
+            if(previous != null)
+                currentDispatchKey.set(previous);
+            else
+                currentDispatchKey.remove();
+        }
+    }
+
     public <T extends NarratorService> T getService(Class<T> type) {
         return getServices(type).findFirst().orElse(null);
     }
@@ -423,6 +1029,9 @@ public class Narrator extends ListenerAdapter {
                 throw new RuntimeException("Failed to find guild");
             });
 
+            // Index emotes before any events
+            refreshEmotes();
+
             // Setup listener
             jda.addEventListener(this);
 
@@ -444,27 +1053,22 @@ public class Narrator extends ListenerAdapter {
                 ProcessedMessage message = new ProcessedMessage(event.getMessage().getContentDisplay());
 
                 // Inform services
-                servicesIterator.clear();
-                servicesIterator.addAll(services);
-                for(NarratorService service : servicesIterator) {
-                    if(service.processPrivateMessage(this, event, message))
-                        return;     // absorbed
-                }
+                dispatchEvent(service -> service.processPrivateMessage(this, event, message));
             });
         }
         else {
             // Serialize all execution on a single thread
             scheduler.execute(() -> {
+                // Only catch-all services and services monitoring this channel
+                NarratorService[] targets = channelRoutes.get(event.getChannel().getIdLong());
+                if(targets.length == 0)
+                    return;
+
                 // Cleanup message
                 ProcessedMessage message = new ProcessedMessage(event.getMessage().getContentDisplay());
 
                 // Inform services
-                servicesIterator.clear();
-                servicesIterator.addAll(services);
-                for(NarratorService service : servicesIterator) {
-                    if(service.processMessage(this, event, message))
-                        return;     // absorbed
-                }
+                dispatchEvent(Arrays.asList(targets), service -> service.processMessage(this, event, message));
             });
         }
     }
@@ -481,28 +1085,12 @@ public class Narrator extends ListenerAdapter {
         if (event.getChannelType() == ChannelType.PRIVATE)
         {
             // Serialize all execution on a single thread
-            scheduler.execute(() -> {
-                // Inform services
-                servicesIterator.clear();
-                servicesIterator.addAll(services);
-                for(NarratorService service : servicesIterator) {
-                    if(service.processPrivateReactionAdded(this, event))
-                        return;     // absorbed
-                }
-            });
+            scheduler.execute(() -> dispatchEvent(service -> service.processPrivateReactionAdded(this, event)));
         }
         else
         {
             // Serialize all execution on a single thread
-            scheduler.execute(() -> {
-                // Inform services
-                servicesIterator.clear();
-                servicesIterator.addAll(services);
-                for(NarratorService service : servicesIterator) {
-                    if(service.processReactionAdded(this, event))
-                        return;     // absorbed
-                }
-            });
+            scheduler.execute(() -> dispatchReaction(event.getMessageIdLong(), service -> service.processReactionAdded(this, event)));
         }
     }
 
@@ -515,28 +1103,12 @@ public class Narrator extends ListenerAdapter {
         if (event.getChannelType() == ChannelType.PRIVATE)
         {
             // Serialize all execution on a single thread
-            scheduler.execute(() -> {
-                // Inform services
-                servicesIterator.clear();
-                servicesIterator.addAll(services);
-                for(NarratorService service : servicesIterator) {
-                    if(service.processPrivateReactionRemoved(this, event))
-                        return;     // absorbed
-                }
-            });
+            scheduler.execute(() -> dispatchEvent(service -> service.processPrivateReactionRemoved(this, event)));
         }
         else
         {
             // Serialize all execution on a single thread
-            scheduler.execute(() -> {
-                // Inform services
-                servicesIterator.clear();
-                servicesIterator.addAll(services);
-                for(NarratorService service : servicesIterator) {
-                    if(service.processReactionRemoved(this, event))
-                        return;     // absorbed
-                }
-            });
+            scheduler.execute(() -> dispatchReaction(event.getMessageIdLong(), service -> service.processReactionRemoved(this, event)));
         }
     }
 
@@ -547,12 +1119,7 @@ public class Narrator extends ListenerAdapter {
             log.info("Member joined: " + event.getMember().getEffectiveName());
 
             // Inform services
-            servicesIterator.clear();
-            servicesIterator.addAll(services);
-            for(NarratorService service : servicesIterator) {
-                if(service.processMemberJoined(this, event))
-                    return;     // absorbed
-            }
+            dispatchEvent(service -> service.processMemberJoined(this, event));
         });
     }
 
@@ -563,27 +1130,43 @@ public class Narrator extends ListenerAdapter {
         if(event.getMember().getUser().isBot())
             return;
 
-        scheduler.execute(() -> {
-            // Inform services
-            servicesIterator.clear();
-            servicesIterator.addAll(services);
-            for(NarratorService service : servicesIterator) {
-                if(service.processNickChange(this, event))
-                    return;     // absorbed
-            }
-        });
+        scheduler.execute(() -> dispatchEvent(service -> service.processNickChange(this, event)));
+    }
+
+    @Override
+    public void onEmoteAdded(@Nonnull EmoteAddedEvent event) {
+        if(event.getGuild() == guild)
+            refreshEmotes();
+    }
+
+    @Override
+    public void onEmoteRemoved(@Nonnull EmoteRemovedEvent event) {
+        if(event.getGuild() == guild)
+            refreshEmotes();
+    }
+
+    @Override
+    public void onEmoteUpdateName(@Nonnull EmoteUpdateNameEvent event) {
+        if(event.getGuild() == guild)
+            refreshEmotes();
     }
 
     @Override
     public void onDisconnect(DisconnectEvent event) {
-        scheduler.execute(() -> {
+        Runnable awaitReconnection = () -> {
             // Hold scheduler until reconnection
             try {
                 jda.awaitReady();
             } catch (Throwable e) {
                 log.error("Failed to wait for discord reconnection", e);
             }
-        });
+        };
+        scheduler.execute(awaitReconnection);
+        LaneScheduler[] lanes = this.lanes;
+        if(lanes != null) {
+            for(LaneScheduler lane : lanes)
+                lane.execute(awaitReconnection);
+        }
     }
 
     @Override
@@ -592,6 +1175,13 @@ public class Narrator extends ListenerAdapter {
         // Restart builder
         jda.shutdownNow();
         scheduler.shutdownNow();
+        gatewayPool.shutdownNow();
+        rateLimitPool.shutdownNow();
+        LaneScheduler[] lanes = this.lanes;
+        if(lanes != null) {
+            for(LaneScheduler lane : lanes)
+                lane.shutdownNow();
+        }
         // Start new
         new Thread(() -> {
             NarratorBuilder newBuilder = new NarratorBuilder(builder.sheetFilename, builder.googleDocId, builder.mainSheetName);
@@ -23,8 +23,8 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 @SheetFields(fields = {
-        "key", "saveFilePath", "saveFileInterval",
-        "downloadPath", "downloadMaxSize"
+        "key", "saveFilePath", "saveFileInterval", "saveJournalMaxSize", "saveFileFastCodec",
+        "downloadPath", "downloadMaxSize", "downloadCacheMaxSize"
 })
 public class NarratorBuilder implements OnSheetEnded, NarratorProvider {
     private static final Logger log = LogManager.getLogger("NarratorBuilder");
@@ -177,9 +177,12 @@ public class NarratorBuilder implements OnSheetEnded, NarratorProvider {
 
     public String saveFilePath;
     public long saveFileInterval;
+    public long saveJournalMaxSize = 0;         // 0 to always rewrite the whole save file
+    public boolean saveFileFastCodec = false;   // LZ is faster to write but saves cannot be read by builds older than it
 
     public String downloadPath;
     public long downloadMaxSize;
+    public long downloadCacheMaxSize = 0;       // 0 to keep all downloads
 
 
     // Narrator thread only
@@ -190,6 +193,10 @@ public class NarratorBuilder implements OnSheetEnded, NarratorProvider {
         bot.reloadSave();
     }
 
+    public void prepareDispatch(int lanes) {
+        bot.startDispatchLanes(lanes);
+    }
+
     public void configureStoryService(StoryService.Config config) {
         StoryService service = bot.getService(StoryService.class);
         if(service != null)
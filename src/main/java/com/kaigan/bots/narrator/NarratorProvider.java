@@ -3,4 +3,11 @@ package com.kaigan.bots.narrator;
 public interface NarratorProvider {
 
     Narrator getBot();
+
+    /**
+     * Called for every file referenced while parsing, downloads immediately by default.
+     */
+    default void requestFile(String url) {
+        getBot().getFile(url);
+    }
 }
@@ -8,6 +8,30 @@ import net.dv8tion.jda.api.events.message.react.MessageReactionRemoveEvent;
 
 public interface NarratorService {
 
+    /**
+     * Services returning the same key are always processed serially on the same dispatch lane.
+     * Null keeps the service on the main scheduler, which is the only option when lanes are not started.
+     */
+    default Object getDispatchKey() {
+        return null;        // main scheduler
+    }
+
+    /**
+     * Services that register their interactive messages with {@link Narrator#registerMessage(long, NarratorService)}
+     * receive guild reactions only for those messages, instead of every reaction.
+     */
+    default boolean isReactionRouted() {
+        return false;       // receive all reactions
+    }
+
+    /**
+     * Services that register their channels with {@link Narrator#registerChannel(long, NarratorService)}
+     * receive guild messages only from those channels, instead of every message.
+     */
+    default boolean isMessageRouted() {
+        return false;       // receive all messages
+    }
+
     default long onServiceStart(Narrator bot) {
         return -1;          // don't schedule next process
     }
@@ -0,0 +1,81 @@
+package com.kaigan.bots.narrator;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Services interested in events by id, such as messages of a channel, and catch-all services interested in all of them.
+ * Routes are replaced on write so lookups never lock, services are only copied when combining both.
+ */
+class ServiceRoutes {
+
+    static final NarratorService[] EMPTY = new NarratorService[0];
+
+    private final Map<Long, NarratorService[]> routes = new ConcurrentHashMap<>();
+    private volatile NarratorService[] catchAll = EMPTY;
+
+    static NarratorService[] append(NarratorService[] services, NarratorService service) {
+        for(NarratorService existing : services) {
+            if(existing == service)
+                return services;        // already added
+        }
+        NarratorService[] appended = Arrays.copyOf(services, services.length + 1);
+        appended[services.length] = service;
+        return appended;
+    }
+
+    /**
+     * @return services without the service, or null if none are left
+     */
+    static NarratorService[] remove(NarratorService[] services, NarratorService service) {
+        for(int c = 0; c < services.length; c++) {
+            if(services[c] != service)
+                continue;
+            if(services.length == 1)
+                return null;
+            NarratorService[] removed = new NarratorService[services.length - 1];
+            System.arraycopy(services, 0, removed, 0, c);
+            System.arraycopy(services, c + 1, removed, c, removed.length - c);
+            return removed;
+        }
+        return services;        // not found
+    }
+
+    void add(long id, NarratorService service) {
+        routes.compute(id, (key, services) -> services == null ? new NarratorService[] { service } : append(services, service));
+    }
+
+    void remove(long id, NarratorService service) {
+        routes.computeIfPresent(id, (key, services) -> remove(services, service));
+    }
+
+    synchronized void addCatchAll(NarratorService service) {
+        catchAll = append(catchAll, service);
+    }
+
+    /**
+     * Removes the service from catch-all services and all routes.
+     */
+    synchronized void removeService(NarratorService service) {
+        NarratorService[] services = remove(catchAll, service);
+        catchAll = services != null ? services : EMPTY;
+        for(Long id : routes.keySet())
+            remove(id, service);
+    }
+
+    /**
+     * Catch-all services followed by services routed by id, in the order they were added. Must not be modified.
+     */
+    NarratorService[] get(long id) {
+        NarratorService[] catchAll = this.catchAll;
+        NarratorService[] routed = routes.get(id);
+        if(routed == null)
+            return catchAll;
+        if(catchAll.length == 0)
+            return routed;
+        NarratorService[] services = Arrays.copyOf(catchAll, catchAll.length + routed.length);
+        System.arraycopy(routed, 0, services, catchAll.length, routed.length);
+        return services;
+    }
+}
@@ -130,9 +130,8 @@ public class SheetMessageBuilder implements OnSheetEnded {
         public void url(String url) {
             this.url = url;
 
-            // Download file now
-            Narrator bot = SheetStack.first(NarratorProvider.class).getBot();
-            bot.getFile(url);
+            // Download file
+            SheetStack.first(NarratorProvider.class).requestFile(url);
         }
 
     }
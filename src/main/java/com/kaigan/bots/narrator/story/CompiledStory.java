@@ -0,0 +1,107 @@
+package com.kaigan.bots.narrator.story;
+
+import com.badlogic.gdx.utils.ObjectIntMap;
+import sengine.mass.Mass;
+import sengine.mass.MassException;
+import sengine.mass.MassSerializable;
+import sengine.mass.io.Output;
+
+import java.nio.file.Path;
+
+/**
+ * A story compiled after upload, ready to be played without recompiling anything on load.
+ * Dialogue indices with tag ids, flattened conditions and parsed timed replies are saved with the story.
+ * Equal strings referenced as objects, such as tags in lists, are saved once and shared when loaded. String fields
+ * are written inline by mass, so they are neither deduplicated nor shared.
+ * Conversations stay objects as dialogue trees walk them directly, only their conditions are flattened. Message
+ * templates are not saved, they are compiled once at runtime and cached by {@link com.kaigan.bots.narrator.Narrator}.
+ * The {@link StoryHeader} is saved first so invites can read it alone with {@link #loadHeader(Path, String)}.
+ */
+public class CompiledStory implements MassSerializable {
+
+    public static final int VERSION = 2;
+    public static final String FORMAT = ".storyc";
+
+    // Version is inlined in the root, so the header is the first object referenced
+    private static final int HEADER_INDEX = 1;
+
+    public final StoryHeader header;
+    public final StoryBuilder story;
+    public final DialogueIndex[] indices;         // for each channel of the story
+
+    public static CompiledStory compile(StoryBuilder story) {
+        DialogueIndex[] indices = new DialogueIndex[story.channels.size()];
+        for(int c = 0; c < indices.length; c++)
+            indices[c] = story.channels.get(c).getIndex();
+        return new CompiledStory(VERSION, new StoryHeader(story), story, indices);
+    }
+
+    public static CompiledStory load(Path path, String key) {
+        Mass mass = new Mass();
+        mass.loadMapped(path, FORMAT, key);
+        try {
+            return mass.get(0, true);
+        } finally {
+            mass.clear();       // release the mapping, the story does not reference it
+        }
+    }
+
+    public static StoryHeader loadHeader(Path path, String key) {
+        Mass mass = new Mass();
+        mass.loadMapped(path, FORMAT, key);
+        try {
+            Object header = mass.get(HEADER_INDEX, true);
+            if(!(header instanceof StoryHeader))
+                throw new MassException("Unsupported compiled story, header not found");
+            return (StoryHeader) header;
+        } finally {
+            mass.clear();
+        }
+    }
+
+    @MassConstructor
+    public CompiledStory(int version, StoryHeader header, StoryBuilder story, DialogueIndex[] indices) {
+        if(version != VERSION)
+            throw new MassException("Unsupported compiled story version: " + version);
+        if(indices.length != story.channels.size())
+            throw new MassException("Expected " + story.channels.size() + " dialogue indices, found " + indices.length);
+        this.header = header;
+        this.story = story;
+        this.indices = indices;
+        for(int c = 0; c < indices.length; c++)
+            story.channels.get(c).setIndex(indices[c]);
+    }
+
+    @Override
+    public Object[] mass() {
+        return new Object[] { VERSION, header, story, indices };
+    }
+
+    public void save(Output s, String key) {
+        Mass mass = new Mass() {
+            // String table, equal strings written as objects are referenced instead of saved again
+            private final ObjectIntMap<String> strings = new ObjectIntMap<>();
+            // Npcs and players of the header, referenced again by the story
+            private final ObjectIntMap<Object> shared = new ObjectIntMap<>();
+
+            @Override
+            protected void cacheSerializedObject(Object object, int idx) {
+                if(object instanceof String)
+                    strings.put((String) object, idx);
+                else if(object instanceof StoryBuilder.NpcBuilder[])
+                    shared.put(object, idx);        // arrays are compared by identity
+            }
+
+            @Override
+            protected int findSerializedObject(Object object) {
+                if(object instanceof String)
+                    return strings.get((String) object, NOT_FOUND);
+                else if(object instanceof StoryBuilder.NpcBuilder[])
+                    return shared.get(object, NOT_FOUND);
+                return NOT_FOUND;
+            }
+        };
+        mass.add(this);
+        mass.save(s, FORMAT, key);
+    }
+}
@@ -0,0 +1,264 @@
+package com.kaigan.bots.narrator.story;
+
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.ObjectIntMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import sengine.mass.MassSerializable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Compiled tag conditions of a story channel. Tags are interned to integer ids so that dialogue trees can
+ * evaluate conditions with bit operations and only re-evaluate conversations that reference changed tags.
+ * Delays of timed user messages are parsed here as well.
+ * Immutable once built, shared by all instances playing the same story. Saved flattened with compiled stories.
+ */
+public class DialogueIndex implements MassSerializable {
+    private static final Logger log = LogManager.getLogger("DialogueIndex");
+
+    private static final int FLAG_IDLE = 0x1;
+    private static final int FLAG_NOT_IDLE = 0x2;
+
+    public static class Condition {
+        public final int[] required;        // tag ids that must be set
+        public final int[] forbidden;       // tag ids that must not be set
+        public final boolean isIdle;
+        public final boolean isNotIdle;
+
+        Condition(int[] required, int[] forbidden, boolean isIdle, boolean isNotIdle) {
+            this.required = required;
+            this.forbidden = forbidden;
+            this.isIdle = isIdle;
+            this.isNotIdle = isNotIdle;
+        }
+
+        public boolean dependsOnIdle() {
+            return isIdle || isNotIdle;
+        }
+
+        public boolean matchesTags(BitSet values) {
+            for(int id : required) {
+                if(!values.get(id))
+                    return false;
+            }
+            for(int id : forbidden) {
+                if(values.get(id))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    public final String namespace;
+
+    private final ObjectIntMap<String> tagIds = new ObjectIntMap<>();
+    private final List<String> tagNames = new ArrayList<>();
+
+    public final Condition[] conversationConditions;
+    public final Condition[][] userMessageConditions;
+    private final int[][] tagConversations;         // conversations to re-evaluate when a tag changes
+    private final float[][] userMessageTimers;      // delay of timed user messages, NaN if not timed
+
+    public int tags() {
+        return tagNames.size();
+    }
+
+    public String tagName(int id) {
+        return tagNames.get(id);
+    }
+
+    public int tagId(String qualifiedName) {
+        return tagIds.get(qualifiedName, -1);
+    }
+
+    public int[] conversationsOf(int id) {
+        return tagConversations[id];
+    }
+
+    /**
+     * @return delay in seconds if the user message is timed, else NaN
+     */
+    public float userMessageTimer(int conversation, int message) {
+        return userMessageTimers[conversation][message];
+    }
+
+    private int intern(String qualifiedName) {
+        int id = tagIds.get(qualifiedName, -1);
+        if(id == -1) {
+            id = tagNames.size();
+            tagIds.put(qualifiedName, id);
+            tagNames.add(qualifiedName);
+        }
+        return id;
+    }
+
+    private Condition compile(List<String> tags) {
+        IntArray required = new IntArray();
+        IntArray forbidden = new IntArray();
+        boolean isIdle = false;
+        boolean isNotIdle = false;
+        for(String tag : tags) {
+            if(tag == null || tag.isEmpty())
+                continue;       // ignore
+            boolean isNot = tag.charAt(0) == '!';
+            if(isNot)
+                tag = tag.substring(1);
+            // Special tag IDLE is only known during refresh
+            if(tag.equals(DialogueTree.TAG_IDLE)) {
+                if(isNot)
+                    isNotIdle = true;
+                else
+                    isIdle = true;
+                continue;
+            }
+            String qualifiedName = tag.contains(".") ? tag : namespace + "." + tag;
+            if(isNot)
+                forbidden.add(intern(qualifiedName));
+            else
+                required.add(intern(qualifiedName));
+        }
+        return new Condition(required.toArray(), forbidden.toArray(), isIdle, isNotIdle);
+    }
+
+    DialogueIndex(StoryChannelBuilder model) {
+        namespace = model.name;
+
+        List<Conversation> conversations = model.conversations;
+        conversationConditions = new Condition[conversations.size()];
+        userMessageConditions = new Condition[conversations.size()][];
+        userMessageTimers = new float[conversations.size()][];
+        List<IntArray> references = new ArrayList<>();
+        for(int c = 0; c < conversations.size(); c++) {
+            Conversation conversation = conversations.get(c);
+            conversationConditions[c] = compile(conversation.tags);
+            Condition[] userConditions = new Condition[conversation.userMessages.size()];
+            float[] timers = new float[userConditions.length];
+            for(int m = 0; m < userConditions.length; m++) {
+                UserMessage message = conversation.userMessages.get(m);
+                userConditions[m] = compile(message.tags);
+                timers[m] = parseTimer(message.message);
+            }
+            userMessageConditions[c] = userConditions;
+            userMessageTimers[c] = timers;
+
+            // Remember which tags this conversation depends on
+            while(references.size() < tagNames.size())
+                references.add(new IntArray());
+            reference(references, conversationConditions[c], c);
+            for(Condition condition : userConditions)
+                reference(references, condition, c);
+        }
+        tagConversations = new int[tagNames.size()][];
+        for(int id = 0; id < tagConversations.length; id++)
+            tagConversations[id] = references.get(id).toArray();
+    }
+
+    private static float parseTimer(String message) {
+        if(message == null || !message.startsWith(DialogueTree.DIALOG_TIMER))
+            return Float.NaN;       // not timed message
+        try {
+            return Float.parseFloat(message.substring(DialogueTree.DIALOG_TIMER.length()));
+        } catch (Throwable e) {
+            // Ignore
+            log.error("Failed to parse timed user message: " + message);
+            return Float.NaN;
+        }
+    }
+
+    @MassConstructor
+    public DialogueIndex(String namespace, String[] tagNames, int[] conditions, int[] userMessageCounts, int[] tagConversations, float[] userMessageTimers) {
+        this.namespace = namespace;
+        for(String tagName : tagNames)
+            intern(tagName);
+
+        // Conditions of each conversation followed by its user messages, see mass()
+        int conversations = userMessageCounts.length;
+        conversationConditions = new Condition[conversations];
+        userMessageConditions = new Condition[conversations][];
+        this.userMessageTimers = new float[conversations][];
+        int[] position = new int[1];        // read offset in conditions
+        int timerOffset = 0;
+        for(int c = 0; c < conversations; c++) {
+            conversationConditions[c] = readCondition(conditions, position);
+            Condition[] userConditions = new Condition[userMessageCounts[c]];
+            for(int m = 0; m < userConditions.length; m++)
+                userConditions[m] = readCondition(conditions, position);
+            userMessageConditions[c] = userConditions;
+            this.userMessageTimers[c] = Arrays.copyOfRange(userMessageTimers, timerOffset, timerOffset + userConditions.length);
+            timerOffset += userConditions.length;
+        }
+
+        // Count followed by conversations for each tag
+        this.tagConversations = new int[tagNames.length][];
+        int offset = 0;
+        for(int id = 0; id < tagNames.length; id++) {
+            int count = tagConversations[offset++];
+            this.tagConversations[id] = Arrays.copyOfRange(tagConversations, offset, offset + count);
+            offset += count;
+        }
+    }
+
+    @Override
+    public Object[] mass() {
+        IntArray conditions = new IntArray();
+        int[] userMessageCounts = new int[conversationConditions.length];
+        FloatArray timers = new FloatArray();
+        for(int c = 0; c < conversationConditions.length; c++) {
+            writeCondition(conditions, conversationConditions[c]);
+            for(Condition condition : userMessageConditions[c])
+                writeCondition(conditions, condition);
+            userMessageCounts[c] = userMessageConditions[c].length;
+            timers.addAll(userMessageTimers[c]);
+        }
+        IntArray conversations = new IntArray();
+        for(int[] tagConversation : tagConversations) {
+            conversations.add(tagConversation.length);
+            conversations.addAll(tagConversation);
+        }
+        return new Object[] {
+                namespace,
+                tagNames.toArray(new String[0]),
+                conditions.toArray(),
+                userMessageCounts,
+                conversations.toArray(),
+                timers.toArray()
+        };
+    }
+
+    private static void writeCondition(IntArray data, Condition condition) {
+        data.add((condition.isIdle ? FLAG_IDLE : 0) | (condition.isNotIdle ? FLAG_NOT_IDLE : 0));
+        data.add(condition.required.length);
+        data.addAll(condition.required);
+        data.add(condition.forbidden.length);
+        data.addAll(condition.forbidden);
+    }
+
+    private static Condition readCondition(int[] data, int[] position) {
+        int offset = position[0];
+        int flags = data[offset++];
+        int[] required = Arrays.copyOfRange(data, offset + 1, offset + 1 + data[offset]);
+        offset += 1 + required.length;
+        int[] forbidden = Arrays.copyOfRange(data, offset + 1, offset + 1 + data[offset]);
+        offset += 1 + forbidden.length;
+        position[0] = offset;
+        return new Condition(required, forbidden, (flags & FLAG_IDLE) != 0, (flags & FLAG_NOT_IDLE) != 0);
+    }
+
+    private static void reference(List<IntArray> references, Condition condition, int conversation) {
+        for(int id : condition.required)
+            addUnique(references.get(id), conversation);
+        for(int id : condition.forbidden)
+            addUnique(references.get(id), conversation);
+    }
+
+    private static void addUnique(IntArray conversations, int conversation) {
+        // Conversations are compiled in order, so duplicates can only be at the end
+        if(conversations.size == 0 || conversations.peek() != conversation)
+            conversations.add(conversation);
+    }
+}
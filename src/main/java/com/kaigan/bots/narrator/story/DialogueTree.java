@@ -3,7 +3,10 @@ package com.kaigan.bots.narrator.story;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.badlogic.gdx.utils.IntArray;
+
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 /**
@@ -20,48 +23,6 @@ public class DialogueTree {
     public static final String DIALOG_TIMER = "timer://";
 
 
-    /**
-     * Soft-compares s1 and s2. s2 must contain all of s1 even if any in-between characters are ignored.
-     * @param s1
-     * @param s2
-     * @return true if s2 contains all of s1
-     */
-    private static boolean compareWildcardReply(String s1, String s2) {
-        s1 = s1.toLowerCase();
-        s2 = s2.replaceAll("\\s+","").toLowerCase();
-
-        int len1 = s1.length();
-
-        int i1 = 0;
-        int i2 = 0;
-        boolean isContinuous = false;
-
-        for(; i1 < len1; i1++) {
-            char ch1 = s1.charAt(i1);
-            if (Character.isWhitespace(ch1)) {
-                isContinuous = false;
-                continue;       // ignore whitespace
-            }
-            int next = s2.indexOf(ch1, i2);
-            if(next == -1)
-                return false;
-            if (isContinuous && next != i2)     // for whole words, there must be no breaks
-                return false;
-            isContinuous = true;
-            i2 = next + 1;
-        }
-
-        return true;
-    }
-
-    private static boolean compareStrictReply(String s1, String s2) {
-        s1 = s1.replaceAll("\\s+","").toLowerCase();
-        s2 = s2.replaceAll("\\s+","").toLowerCase();
-
-        return s1.contentEquals(s2);
-    }
-
-
     private enum TagsResult {
         DEPENDS_ON_IDLE,
         ALLOWED,
@@ -72,14 +33,25 @@ public class DialogueTree {
     public final ScriptState states;
     public final String namespace;
     public final List<Conversation> conversations;
+    private final DialogueIndex index;
+    private final int[] stateSlots;         // tag id to script state slot
+    private final ScriptState.ChangeTracker changeTracker = this::trackChange;      // kept to be removed on dispose
+
+    // Compiled tag state
+    private final BitSet tagValues = new BitSet();
+    private final BitSet dirtyConversations = new BitSet();
+    private final BitSet allowedConversations = new BitSet();       // allowed regardless of idle
+    private final BitSet idleConversations = new BitSet();          // depends on idle
+    private int stateGeneration = -1;
 
     // Current conversations
     public Conversation current = null;
     public final ArrayList<Conversation> available = new ArrayList<>();
-    private final ArrayList<Conversation> tempIdle = new ArrayList<>();
+    private final IntArray availableIndices = new IntArray();
     public final ArrayList<UserMessage> availableUserMessages = new ArrayList<>();
     public int timedUserMessageIndex = -1;
     public float timedUserMessageDelay = 0f;
+    private final ReplyMatcher replies = new ReplyMatcher();
 
 
     public int activeConversations() {
@@ -97,67 +69,17 @@ public class DialogueTree {
         if(typed.isEmpty())
             return -1;      // dont accept empty string
 
-        Conversation bestConversation = null;
-        int bestMessageIndex = -1;
-
-        out:
-        for(Conversation conversation : available) {
-            for(int c = 0; c < conversation.userMessages.size(); c++) {
-                UserMessage message = conversation.userMessages.get(c);
-                // Make sure this reply is available
-                if(!availableUserMessages.contains(message))
-                    continue;       // not allowed
-
-                // Check if user is correct
-                if(!message.player.equalsIgnoreCase(userName))
-                    continue;
-
-                boolean isWildcard = message.message.startsWith(KEYBOARD_PREFIX);
-
-                if(!isSelection && isWildcard) {
-                    String wildcardMessage = message.message.substring(KEYBOARD_PREFIX.length());
-                    if(wildcardMessage.contentEquals(KEYBOARD_WILDCARD)) {
-                        // Keep track of this but try to find better matches
-                        bestConversation = conversation;
-                        bestMessageIndex = c;
-                    }
-                    else if(wildcardMessage.startsWith(KEYBOARD_WILDCARD)) {
-                        wildcardMessage = wildcardMessage.substring(KEYBOARD_WILDCARD.length());
-                        if(compareWildcardReply(wildcardMessage, typed)) {
-                            // Found perfect match
-                            bestConversation = conversation;
-                            bestMessageIndex = c;
-                            break out;
-                        }
-                    }
-                    else {
-                        if (wildcardMessage.startsWith(KEYBOARD_EQUALS))
-                            wildcardMessage = wildcardMessage.substring(KEYBOARD_EQUALS.length());
-                        if (compareStrictReply(wildcardMessage, typed)) {
-                            // Found perfect match
-                            bestConversation = conversation;
-                            bestMessageIndex = c;
-                            break out;
-                        }
-                    }
-                }
-                else if(isSelection && typed.equals(message.message)) {
-                    // Else just text and it matches
-                    bestConversation = conversation;
-                    bestMessageIndex = c;
-                    break out;
-                }
-            }
-        }
-
-        // Check if found a match
-        if(bestConversation != null) {
-            current = bestConversation;
+        int match = replies.match(typed, userName, isSelection);
+        if(match != -1) {
+            int messageIndex = replies.messageIndex(match);
+            current = replies.conversation(match);
             available.clear();
+            availableIndices.clear();
             availableUserMessages.clear();
+            replies.clear();
             timedUserMessageIndex = -1;
             timedUserMessageDelay = 0f;
-            return bestMessageIndex;
+            return messageIndex;
         }
 
         // Else no match was found
@@ -180,15 +102,6 @@ public class DialogueTree {
         current = null;
     }
 
-    private boolean getTagState(String tag) {
-        String qualifiedName;
-        if(tag.contains("."))
-            qualifiedName = tag;
-        else
-            qualifiedName = namespace + "." + tag;
-        return states.get(qualifiedName, false);
-    }
-
     private void setTagState(String tag, boolean state) {
         if(tag.contains("."))
             states.set(tag, state, true);         // notify only when modifying states of other namespaces, 20180818: replaced !tag.startsWith(namespace) with just true as it conflicts with similar namespace names
@@ -197,140 +110,141 @@ public class DialogueTree {
     }
 
 
-    private TagsResult evaluateTags(TagsResult idleBehaviour, List<String> tags) {
-        TagsResult evaluation = TagsResult.ALLOWED;
-        for(String tag : tags) {
-            if(tag == null || tag.isEmpty())
-                continue;       // ignore
-            boolean isNot = tag.charAt(0) == '!';
-            if(isNot)
-                tag = tag.substring(1);
-
-            boolean value;
+    private TagsResult evaluateTags(TagsResult idleBehaviour, DialogueIndex.Condition condition) {
+        if(!condition.matchesTags(tagValues))
+            return TagsResult.NOT_ALLOWED;
+        if(!condition.dependsOnIdle())
+            return TagsResult.ALLOWED;
+        // Get value of special tag IDLE
+        if(idleBehaviour == TagsResult.DEPENDS_ON_IDLE)
+            return TagsResult.DEPENDS_ON_IDLE;
+        // Else use specified value
+        boolean value = idleBehaviour == TagsResult.ALLOWED;
+        if((condition.isIdle && !value) || (condition.isNotIdle && value))
+            return TagsResult.NOT_ALLOWED;
+        return TagsResult.ALLOWED;
+    }
 
-            // Get value of special tag IDLE
-            if(tag.equals(TAG_IDLE)) {
-                if (idleBehaviour == TagsResult.DEPENDS_ON_IDLE) {
-                    evaluation = TagsResult.DEPENDS_ON_IDLE;
-                    continue;
+    private TagsResult evaluateConversation(int index) {
+        // Check if tags are all unlocked
+        TagsResult evaluation = evaluateTags(TagsResult.DEPENDS_ON_IDLE, this.index.conversationConditions[index]);
+        if(evaluation != TagsResult.ALLOWED)
+            return evaluation;       // Tags for this conversation is still locked or depends on idle
+
+        // Else is allowed, evaluate if user messages tags are allowed as well
+        Conversation conversation = conversations.get(index);
+        DialogueIndex.Condition[] userMessageConditions = this.index.userMessageConditions[index];
+        for(int c = 0; c < userMessageConditions.length; c++) {
+            if(!conversation.userMessages.get(c).tags.isEmpty()) {
+                // Evaluate specified tags
+                TagsResult userMessageEvaluation = evaluateTags(TagsResult.DEPENDS_ON_IDLE, userMessageConditions[c]);
+                if(userMessageEvaluation == TagsResult.ALLOWED) {
+                    evaluation = TagsResult.ALLOWED;        // Found an user message where tags allows it, mark conversation as available
+                    break;
                 }
-                // Else use specified value
-                value = idleBehaviour == TagsResult.ALLOWED;
+                else if(userMessageEvaluation == TagsResult.DEPENDS_ON_IDLE)
+                    evaluation = TagsResult.DEPENDS_ON_IDLE;
+                else if(userMessageEvaluation == TagsResult.NOT_ALLOWED && evaluation == TagsResult.ALLOWED)
+                    evaluation = TagsResult.NOT_ALLOWED;
+            }
+            else {
+                // By default, no tags means is allowed
+                evaluation = TagsResult.ALLOWED;        // Found an user message without any condition, mark conversation as available
+                break;
             }
-            else
-                value = getTagState(tag);
-
-            // Evaluate value
-            if (isNot) {
-                if (value)
-                    return TagsResult.NOT_ALLOWED;
-            } else if (!value)
-                return TagsResult.NOT_ALLOWED;
         }
-
         return evaluation;
     }
 
+    private void trackChange(String name) {
+        int id = index.tagId(name);
+        if(id == -1)
+            return;     // not referenced by this tree
+        tagValues.set(id, states.isSet(stateSlots[id]));
+        // Only conversations referencing this tag need to be re-evaluated
+        for(int conversation : index.conversationsOf(id))
+            dirtyConversations.set(conversation);
+    }
+
+    private void reloadTags() {
+        // All variables were replaced, reload all tags and re-evaluate all conversations
+        tagValues.clear();
+        for(int id = 0; id < stateSlots.length; id++) {
+            if(states.isSet(stateSlots[id]))
+                tagValues.set(id);
+        }
+        dirtyConversations.set(0, conversations.size());
+        stateGeneration = states.generation();
+    }
+
 
     /**
      * Refresh current conversation status, updates current, available and availableUserMessages fields.<br />
+     * Only conversations referencing tags that changed since the last refresh are re-evaluated.
      */
     public void refreshCurrent() {
         // Clear
         current = null;
         available.clear();
-        tempIdle.clear();
+        availableIndices.clear();
         availableUserMessages.clear();
+        replies.clear();
         timedUserMessageIndex = -1;
         timedUserMessageDelay = 0f;
 
-        // Evaluate conversations in order
-        for(Conversation conversation : conversations) {
+        // Re-evaluate changed conversations
+        if(stateGeneration != states.generation())
+            reloadTags();
+        for(int c = dirtyConversations.nextSetBit(0); c >= 0; c = dirtyConversations.nextSetBit(c + 1)) {
+            TagsResult evaluation = evaluateConversation(c);
+            allowedConversations.set(c, evaluation == TagsResult.ALLOWED);
+            idleConversations.set(c, evaluation == TagsResult.DEPENDS_ON_IDLE);
+        }
+        dirtyConversations.clear();
+
+        // Collect conversations in order
+        for(int c = allowedConversations.nextSetBit(0); c >= 0; c = allowedConversations.nextSetBit(c + 1)) {
+            available.add(conversations.get(c));
+            availableIndices.add(c);
+        }
+        // Re-evaluate idles
+        TagsResult idleBehaviour = available.isEmpty() ? TagsResult.ALLOWED : TagsResult.NOT_ALLOWED;
+        for(int index = idleConversations.nextSetBit(0); index >= 0; index = idleConversations.nextSetBit(index + 1)) {
+            Conversation conversation = conversations.get(index);
 
             // Check if tags are all unlocked
-            TagsResult evaluation = evaluateTags(TagsResult.DEPENDS_ON_IDLE, conversation.tags);
+            TagsResult evaluation = evaluateTags(idleBehaviour, this.index.conversationConditions[index]);
             if(evaluation == TagsResult.NOT_ALLOWED)
-                continue;       // Tags for this conversation is still locked
-
-            // Check if conversation tags depend on idle
-            if(evaluation == TagsResult.DEPENDS_ON_IDLE) {
-                tempIdle.add(conversation);
-                continue;
-            }
+                continue;       // Idle tag evaluation locks this conversation
 
             // Else is allowed, evaluate if user messages tags are allowed as well
-            evaluation = TagsResult.ALLOWED;
-            for(UserMessage userMessage : conversation.userMessages) {
-                if(!userMessage.tags.isEmpty()) {
+            DialogueIndex.Condition[] userMessageConditions = this.index.userMessageConditions[index];
+            for(int c = 0; c < userMessageConditions.length; c++) {
+                if(!conversation.userMessages.get(c).tags.isEmpty()) {
                     // Evaluate specified tags
-                    TagsResult userMessageEvaluation = evaluateTags(TagsResult.DEPENDS_ON_IDLE, userMessage.tags);
+                    TagsResult userMessageEvaluation = evaluateTags(idleBehaviour, userMessageConditions[c]);
                     if(userMessageEvaluation == TagsResult.ALLOWED) {
-                        evaluation = TagsResult.ALLOWED;        // Found an user message where tags allows it, mark conversation as available
+                        evaluation = TagsResult.ALLOWED;
                         break;
                     }
-                    else if(userMessageEvaluation == TagsResult.DEPENDS_ON_IDLE)
-                        evaluation = TagsResult.DEPENDS_ON_IDLE;
-                    else if(userMessageEvaluation == TagsResult.NOT_ALLOWED && evaluation == TagsResult.ALLOWED)
+                    else if(userMessageEvaluation == TagsResult.NOT_ALLOWED)
                         evaluation = TagsResult.NOT_ALLOWED;
                 }
                 else {
                     // By default, no tags means is allowed
-                    evaluation = TagsResult.ALLOWED;        // Found an user message without any condition, mark conversation as available
+                    evaluation = TagsResult.ALLOWED;
                     break;
                 }
             }
 
-            // Check if user message tags completely depend on idle
-            if(evaluation == TagsResult.DEPENDS_ON_IDLE) {
-                tempIdle.add(conversation);
-                continue;
-            }
-
             // Add to available conversations if allowed
-            if(evaluation == TagsResult.ALLOWED)
+            if(evaluation == TagsResult.ALLOWED) {
                 available.add(conversation);
+                availableIndices.add(index);
+            }
 
             // Else not allowed
         }
-        // Re-evaluate idles
-        TagsResult idleBehaviour = available.isEmpty() ? TagsResult.ALLOWED : TagsResult.NOT_ALLOWED;
-        if(!tempIdle.isEmpty()) {
-            for(int c = 0; c < tempIdle.size(); c++) {
-                Conversation conversation = tempIdle.get(c);
-
-                // Check if tags are all unlocked
-                TagsResult evaluation = evaluateTags(idleBehaviour, conversation.tags);
-                if(evaluation == TagsResult.NOT_ALLOWED)
-                    continue;       // Idle tag evaluation locks this conversation
-
-                // Else is allowed, evaluate if user messages tags are allowed as well
-                for(UserMessage userMessage : conversation.userMessages) {
-                    if(!userMessage.tags.isEmpty()) {
-                        // Evaluate specified tags
-                        TagsResult userMessageEvaluation = evaluateTags(idleBehaviour, userMessage.tags);
-                        if(userMessageEvaluation == TagsResult.ALLOWED) {
-                            evaluation = TagsResult.ALLOWED;
-                            break;
-                        }
-                        else if(userMessageEvaluation == TagsResult.NOT_ALLOWED)
-                            evaluation = TagsResult.NOT_ALLOWED;
-                    }
-                    else {
-                        // By default, no tags means is allowed
-                        evaluation = TagsResult.ALLOWED;
-                        break;
-                    }
-                }
-
-                // Add to available conversations if allowed
-                if(evaluation == TagsResult.ALLOWED)
-                    available.add(conversation);
-
-                // Else not allowed
-            }
-            // Clear
-            tempIdle.clear();
-        }
         if(available.isEmpty())
             return;     // no conversations available
 
@@ -341,38 +255,32 @@ public class DialogueTree {
                 // Found a conversation where sender sends first, automatically use this as current
                 current = conversation;
                 available.clear();
+                availableIndices.clear();
                 availableUserMessages.clear();
+                replies.clear();
+                timedUserMessageIndex = -1;
+                timedUserMessageDelay = 0f;
                 break;
             }
 
             // Else, add for each user messages where tags are allowed
-            for(UserMessage userMessage : conversation.userMessages) {
-                if(userMessage.tags.isEmpty() || evaluateTags(idleBehaviour, userMessage.tags) == TagsResult.ALLOWED)
-                    availableUserMessages.add(userMessage);
+            int conversationIndex = availableIndices.get(c);
+            DialogueIndex.Condition[] userMessageConditions = index.userMessageConditions[conversationIndex];
+            for(int m = 0; m < userMessageConditions.length; m++) {
+                UserMessage userMessage = conversation.userMessages.get(m);
+                if(!userMessage.tags.isEmpty() && evaluateTags(idleBehaviour, userMessageConditions[m]) != TagsResult.ALLOWED)
+                    continue;
+                availableUserMessages.add(userMessage);
+                replies.add(conversation, m);
+                // Find the earliest timed reply, delays were parsed when compiling the index
+                float time = index.userMessageTimer(conversationIndex, m);
+                if(!Float.isNaN(time) && (timedUserMessageIndex == -1 || time < timedUserMessageDelay)) {
+                    timedUserMessageIndex = availableUserMessages.size() - 1;
+                    timedUserMessageDelay = time;
+                }
             }
         }
         // Done
-
-        // If there are user messages, check for timed messages
-        for(int c = 0; c < availableUserMessages.size(); c++) {
-            String userMessage = availableUserMessages.get(c).message;
-            if(!userMessage.startsWith(DIALOG_TIMER))
-                continue;       // not timed message
-            // Parse time
-            float time;
-            try {
-                time = Float.parseFloat(userMessage.substring(DIALOG_TIMER.length()));
-            } catch (Throwable e) {
-                // Ignore
-                log.error("Failed to parse timed user message: " + userMessage);
-                continue;
-            }
-            // Find the earliest timed reply
-            if(timedUserMessageIndex == -1 || time < timedUserMessageDelay) {
-                timedUserMessageIndex = c;
-                timedUserMessageDelay = time;
-            }
-        }
     }
 
 
@@ -415,5 +323,19 @@ public class DialogueTree {
 
         // Compile all conversations
         conversations = model.conversations;
+        index = model.getIndex();
+        stateSlots = new int[index.tags()];
+        for(int id = 0; id < stateSlots.length; id++)
+            stateSlots[id] = states.slot(index.tagName(id));
+
+        // Track tag changes
+        states.addChangeTracker(changeTracker);
+    }
+
+    /**
+     * Stops tracking tag changes, must be called once this tree is no longer used as states usually outlive it.
+     */
+    public void dispose() {
+        states.removeChangeTracker(changeTracker);
     }
 }
@@ -0,0 +1,195 @@
+package com.kaigan.bots.narrator.story;
+
+import com.badlogic.gdx.utils.IntArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Available user messages of a dialogue tree, grouped by how typed replies are matched against them.
+ * Typed input is normalized once, strict replies are looked up by hash and each wildcard pattern is matched once
+ * regardless of how many user messages share it. Replies are compiled once per tree and reused across refreshes.
+ */
+class ReplyMatcher {
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    static String normalize(String s) {
+        return WHITESPACE.matcher(s).replaceAll("").toLowerCase();
+    }
+
+    /**
+     * Compiled text of an user message.
+     */
+    private static class Reply {
+        final boolean isAny;        // keyboard://?, matches anything if nothing else matches
+        final String strict;        // normalized reply, must equal normalized input
+        final char[] wildcard;      // lowercase characters of the pattern without whitespace
+        final boolean[] breaks;     // true if a character starts a word, else it must follow the previous character
+
+        Reply(String message) {
+            String keyboard = message.startsWith(DialogueTree.KEYBOARD_PREFIX) ? message.substring(DialogueTree.KEYBOARD_PREFIX.length()) : null;
+            if(keyboard == null) {
+                // Only matched by selection
+                isAny = false;
+                strict = null;
+                wildcard = null;
+                breaks = null;
+            }
+            else if(keyboard.contentEquals(DialogueTree.KEYBOARD_WILDCARD)) {
+                isAny = true;
+                strict = null;
+                wildcard = null;
+                breaks = null;
+            }
+            else if(keyboard.startsWith(DialogueTree.KEYBOARD_WILDCARD)) {
+                String pattern = keyboard.substring(DialogueTree.KEYBOARD_WILDCARD.length()).toLowerCase();
+                char[] chars = new char[pattern.length()];
+                boolean[] breaks = new boolean[pattern.length()];
+                int length = 0;
+                boolean isContinuous = false;
+                for(int c = 0; c < pattern.length(); c++) {
+                    char ch = pattern.charAt(c);
+                    if(Character.isWhitespace(ch)) {
+                        isContinuous = false;
+                        continue;       // ignore whitespace
+                    }
+                    chars[length] = ch;
+                    breaks[length] = !isContinuous;
+                    length++;
+                    isContinuous = true;
+                }
+                isAny = false;
+                strict = null;
+                wildcard = length == chars.length ? chars : Arrays.copyOf(chars, length);
+                this.breaks = length == breaks.length ? breaks : Arrays.copyOf(breaks, length);
+            }
+            else {
+                if(keyboard.startsWith(DialogueTree.KEYBOARD_EQUALS))
+                    keyboard = keyboard.substring(DialogueTree.KEYBOARD_EQUALS.length());
+                isAny = false;
+                strict = normalize(keyboard);
+                wildcard = null;
+                breaks = null;
+            }
+        }
+
+        /**
+         * Soft-compares with normalized input. Input must contain all of the pattern even if any in-between characters
+         * are ignored, but whole words must not be broken.
+         */
+        boolean matches(String normalized) {
+            int length = normalized.length();
+            int i = 0;
+            for(int c = 0; c < wildcard.length; c++) {
+                char ch = wildcard[c];
+                if(breaks[c]) {
+                    int next = normalized.indexOf(ch, i);
+                    if(next == -1)
+                        return false;
+                    i = next + 1;
+                }
+                else if(i < length && normalized.charAt(i) == ch)
+                    i++;
+                else
+                    return false;       // for whole words, there must be no breaks
+            }
+            return true;
+        }
+    }
+
+    private final HashMap<String, Reply> compiled = new HashMap<>();
+
+    // Available user messages in order
+    private final ArrayList<Conversation> conversations = new ArrayList<>();
+    private final IntArray messageIndices = new IntArray();
+    private final ArrayList<String> players = new ArrayList<>();
+
+    // Indices of available user messages by reply
+    private final HashMap<String, IntArray> selections = new HashMap<>();
+    private final HashMap<String, IntArray> strict = new HashMap<>();
+    private final HashMap<Reply, IntArray> wildcards = new HashMap<>();
+    private final IntArray any = new IntArray();
+
+    void clear() {
+        conversations.clear();
+        messageIndices.clear();
+        players.clear();
+        selections.clear();
+        strict.clear();
+        wildcards.clear();
+        any.clear();
+    }
+
+    void add(Conversation conversation, int messageIndex) {
+        UserMessage message = conversation.userMessages.get(messageIndex);
+        int index = conversations.size();
+        conversations.add(conversation);
+        messageIndices.add(messageIndex);
+        players.add(message.player);
+
+        selections.computeIfAbsent(message.message, k -> new IntArray()).add(index);
+        Reply reply = compiled.computeIfAbsent(message.message, Reply::new);
+        if(reply.isAny)
+            any.add(index);
+        else if(reply.strict != null)
+            strict.computeIfAbsent(reply.strict, k -> new IntArray()).add(index);
+        else if(reply.wildcard != null)
+            wildcards.computeIfAbsent(reply, k -> new IntArray()).add(index);
+    }
+
+    Conversation conversation(int index) {
+        return conversations.get(index);
+    }
+
+    int messageIndex(int index) {
+        return messageIndices.get(index);
+    }
+
+    private int first(IntArray indices, String userName) {
+        if(indices == null)
+            return -1;
+        for(int c = 0; c < indices.size; c++) {
+            int index = indices.items[c];
+            if(players.get(index).equalsIgnoreCase(userName))
+                return index;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the first available user message matching typed input. A lone wildcard is only used if nothing else
+     * matches, the last one wins.
+     * @return index of the matching user message, or -1 if not found
+     */
+    int match(String typed, String userName, boolean isSelection) {
+        if(isSelection)
+            return first(selections.get(typed), userName);
+
+        String normalized = normalize(typed);
+        int best = first(strict.get(normalized), userName);
+        for(Map.Entry<Reply, IntArray> entry : wildcards.entrySet()) {
+            IntArray indices = entry.getValue();
+            if(best != -1 && indices.items[0] >= best)
+                continue;       // cannot be earlier than current best
+            if(!entry.getKey().matches(normalized))
+                continue;
+            int index = first(indices, userName);
+            if(index != -1 && (best == -1 || index < best))
+                best = index;
+        }
+        if(best != -1)
+            return best;
+
+        // Else use the last lone wildcard
+        for(int c = any.size - 1; c >= 0; c--) {
+            int index = any.items[c];
+            if(players.get(index).equalsIgnoreCase(userName))
+                return index;
+        }
+        return -1;
+    }
+}
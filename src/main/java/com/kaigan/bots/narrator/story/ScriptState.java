@@ -1,9 +1,13 @@
 package com.kaigan.bots.narrator.story;
 
 import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntMap;
+import com.badlogic.gdx.utils.ObjectIntMap;
 import sengine.mass.MassSerializable;
 
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created by Azmi on 19/7/2016.
@@ -14,6 +18,13 @@ public class ScriptState implements MassSerializable {
         void onChanged(String name, T var, T prev);
     }
 
+    /**
+     * Trackers see every changed variable, including changes made without notifying change listeners.
+     */
+    public interface ChangeTracker {
+        void onTrackedChange(String name);
+    }
+
     private static class OnChangeListenerEntry {
         final String prefix;
         final Class type;
@@ -26,8 +37,21 @@ public class ScriptState implements MassSerializable {
         }
     }
 
+    // Prefix trie of listeners, a change only walks the nodes along its name
+    private static class ListenerNode {
+        final IntMap<ListenerNode> children = new IntMap<ListenerNode>();
+        final Array<OnChangeListenerEntry> entries = new Array<OnChangeListenerEntry>(OnChangeListenerEntry.class);
+    }
+
+    // Boolean tags are stored as bits in interned slots, everything else in variables
+    private final ObjectIntMap<String> slots = new ObjectIntMap<String>();
+    private final Array<String> slotNames = new Array<String>(String.class);
+    private final BitSet tags = new BitSet();
     private final HashMap<String, Object> variables;
-    private final Array<OnChangeListenerEntry> onChangeListeners = new Array<OnChangeListenerEntry>(OnChangeListenerEntry.class);
+
+    private ListenerNode onChangeListeners = new ListenerNode();
+    private final Array<ChangeTracker> changeTrackers = new Array<ChangeTracker>(ChangeTracker.class);
+    private int generation = 0;         // incremented whenever all variables are replaced at once
 
     public ScriptState() {
         variables = new HashMap<String, Object>();
@@ -35,20 +59,73 @@ public class ScriptState implements MassSerializable {
 
     @MassConstructor
     public ScriptState(HashMap<String, Object> variables) {
-        this.variables = variables;
+        this.variables = new HashMap<String, Object>();
+        for(Map.Entry<String, Object> e : variables.entrySet()) {
+            if(e.getValue() instanceof Boolean) {
+                if((Boolean) e.getValue())
+                    tags.set(slot(e.getKey()));
+            }
+            else if(e.getValue() != null)
+                this.variables.put(e.getKey(), e.getValue());
+        }
     }
 
     @Override
     public Object[] mass() {
-        return new Object[] { variables };
+        // Saved as a single map, same as before tags were stored separately
+        HashMap<String, Object> saved = new HashMap<String, Object>(variables);
+        for(int slot = tags.nextSetBit(0); slot >= 0; slot = tags.nextSetBit(slot + 1))
+            saved.put(slotNames.items[slot], Boolean.TRUE);
+        return new Object[] { saved };
     }
 
     public void clear() {
         variables.clear();
+        tags.clear();
+        generation++;
+    }
+
+    public int generation() {
+        return generation;
+    }
+
+    /**
+     * Interns a tag name, slots stay valid for the lifetime of this state.
+     */
+    public int slot(String name) {
+        int slot = slots.get(name, -1);
+        if(slot == -1) {
+            slot = slotNames.size;
+            slots.put(name, slot);
+            slotNames.add(name);
+        }
+        return slot;
+    }
+
+    public boolean isSet(int slot) {
+        return tags.get(slot);
+    }
+
+    public void addChangeTracker(ChangeTracker tracker) {
+        changeTrackers.add(tracker);
+    }
+
+    public void removeChangeTracker(ChangeTracker tracker) {
+        changeTrackers.removeValue(tracker, true);
     }
 
     public <T> void addOnChangeListener(String prefix, Class<T> type, OnChangeListener<T> listener) {
-        onChangeListeners.add(new OnChangeListenerEntry(prefix, type, listener));
+        ListenerNode node = onChangeListeners;
+        for(int c = 0; c < prefix.length(); c++) {
+            char ch = prefix.charAt(c);
+            ListenerNode child = node.children.get(ch);
+            if(child == null) {
+                child = new ListenerNode();
+                node.children.put(ch, child);
+            }
+            node = child;
+        }
+        node.entries.add(new OnChangeListenerEntry(prefix, type, listener));
     }
 
     public void removeOnChangeListener(OnChangeListener<?> listener) {
@@ -56,22 +133,31 @@ public class ScriptState implements MassSerializable {
     }
 
     public void removeOnChangeListener(String prefix, OnChangeListener<?> listener) {
+        removeOnChangeListener(onChangeListeners, prefix, listener);
+    }
+
+    private static void removeOnChangeListener(ListenerNode node, String prefix, OnChangeListener<?> listener) {
         // Remove on change listener
-        for(int c = 0; c < onChangeListeners.size; c++) {
-            OnChangeListenerEntry e = onChangeListeners.items[c];
+        for(int c = 0; c < node.entries.size; c++) {
+            OnChangeListenerEntry e = node.entries.items[c];
             if(e.listener != listener || (prefix != null && !e.prefix.equals(prefix)))
                 continue;
             // Else can remove this entry
-            onChangeListeners.removeIndex(c);
+            node.entries.removeIndex(c);
             c--;
         }
+        for(ListenerNode child : node.children.values())
+            removeOnChangeListener(child, prefix, listener);
     }
 
     public void clearOnChangeListeners() {
-        onChangeListeners.clear();
+        onChangeListeners = new ListenerNode();
     }
 
     public <T> T get(String name, T defaultValue) {
+        int slot = slots.get(name, -1);
+        if(slot != -1 && tags.get(slot))
+            return (T) Boolean.TRUE;
         Object result = variables.get(name);
         if(result == null)
             return defaultValue;
@@ -83,28 +169,49 @@ public class ScriptState implements MassSerializable {
     }
 
     public void set(String name, Object value, boolean notifyOnChange) {
-        Object stored = value;
-        if(stored instanceof Boolean) {
-            if(!((Boolean) stored))
-                stored = null;
-        }
         Object prev;
-        if(stored == null)
-            prev = variables.remove(name);
-        else
-            prev = variables.put(name, value);
-        if(!notifyOnChange || prev == value || (prev != null && value != null && prev.equals(value)))
-            return;     // nothing has changed or no need to notify
-        // Check for on change
-        for(int c = 0; c < onChangeListeners.size; c++) {
-            OnChangeListenerEntry e = onChangeListeners.items[c];
-            if(name.startsWith(e.prefix)) {
+        if(value instanceof Boolean) {
+            // Tags are stored as bits, false is never stored
+            int slot = slot(name);
+            if(tags.get(slot))
+                prev = Boolean.TRUE;
+            else
+                prev = variables.remove(name);
+            tags.set(slot, (Boolean) value);
+        }
+        else {
+            int slot = slots.get(name, -1);
+            if(slot != -1 && tags.get(slot)) {
+                tags.clear(slot);
+                prev = Boolean.TRUE;
+                if(value != null)
+                    variables.put(name, value);
+            }
+            else if(value == null)
+                prev = variables.remove(name);
+            else
+                prev = variables.put(name, value);
+        }
+        if(prev == value || (prev != null && value != null && prev.equals(value)))
+            return;     // nothing has changed
+        for(int c = 0; c < changeTrackers.size; c++)
+            changeTrackers.items[c].onTrackedChange(name);
+        if(!notifyOnChange)
+            return;     // no need to notify
+        // Check for on change, only listeners with a prefix of name
+        Class<?> type = value != null ? value.getClass() : prev.getClass();
+        ListenerNode node = onChangeListeners;
+        for(int c = 0; node != null; c++) {
+            for(int i = 0; i < node.entries.size; i++) {
+                OnChangeListenerEntry e = node.entries.items[i];
                 // Name matches, check type
-                Class<?> type = value != null ? value.getClass() : prev.getClass();
                 if(e.type.isAssignableFrom(type)) {
                     e.listener.onChanged(name, value, prev);
                 }
             }
+            if(c == name.length())
+                break;
+            node = node.children.get(name.charAt(c));
         }
     }
 }
@@ -6,14 +6,14 @@ import sengine.sheets.SheetFields;
 
 @SheetFields(fields = { "message", "npc", "idleTime", "typingTime", "embed", "file" })
 public class SenderMessage extends SheetMessageBuilder {
-    public String npc = StoryChannelBuilder.ConversationBuilder.selectedNpc;
+    public String npc = StoryChannelBuilder.selectedNpc();
 
     public float idleTime = 0;
     public float typingTime = 0;
 
     public void npc(String text) {
         npc = text.toLowerCase();        // origin is always case-insensitive
-        StoryChannelBuilder.ConversationBuilder.selectedNpc = npc;      // set as default npc
+        StoryChannelBuilder.selectNpc(npc);      // set as default npc
     }
 
     @Override
@@ -16,6 +16,8 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 class StoryBot implements NarratorService {
     private static final Logger log = LogManager.getLogger("StoryBot");
@@ -33,8 +35,13 @@ class StoryBot implements NarratorService {
     private final String token;
     private final String roleName;
 
-    private JDA jda;
-    private Guild guild;
+    private volatile JDA jda;
+    private volatile Guild guild;
+    private CompletableFuture<Void> started;       // login in progress or done, null if offline
+
+    private final Object configureLock = new Object();     // reconfiguring is done outside of the lock claiming the bot
+
+    private boolean isWarm = false;         // keep online even when not used
 
     private SaveState state;
 
@@ -64,24 +71,66 @@ class StoryBot implements NarratorService {
         return System.currentTimeMillis() - state.lastProfilePicChange;
     }
 
-    void release(StoryInstanceService instance) {
+    synchronized void setWarm(boolean isWarm) {
+        this.isWarm = isWarm;
+    }
+
+    CompletableFuture<Void> warm(Executor executor) {
+        // Login in the background so that acquiring this bot later does not have to wait
+        return CompletableFuture.runAsync(() -> {
+            try {
+                startBot();
+            } catch (Throwable e) {
+                log.error("Unable to warm {}", roleName, e);
+            }
+        }, executor);
+    }
+
+    synchronized void shutdown() {
+        isWarm = false;
+        stopBot();
+    }
+
+    synchronized void release(StoryInstanceService instance) {
         instances.remove(instance);
     }
 
+    /**
+     * Claims this bot for the instance, then logs in and reconfigures it if needed without holding the claim lock.
+     */
     boolean acquire(StoryInstanceService instance, StoryBuilder.NpcBuilder requestedState, boolean reconfigure) {
-        boolean isCompatible = Objects.equals(requestedState.name, state.name)
-                && Objects.equals(requestedState.color, state.color)
-                && Objects.equals(requestedState.profilePic, state.profilePic);
-
-        if(!isCompatible) {
-            if(!reconfigure)
-                return false;       // not compatible and cant reconfigure, so cant acquire
-            // Else try to reconfigure
-            if(!isFree())
-                return false;       // cant reconfigure because this bot is being used by some instances
-            // Else is not compatible but asked to reconfigure
+        synchronized (this) {
+            boolean isCompatible = Objects.equals(requestedState.name, state.name)
+                    && Objects.equals(requestedState.color, state.color)
+                    && Objects.equals(requestedState.profilePic, state.profilePic);
+
+            if(!isCompatible) {
+                if(!reconfigure)
+                    return false;       // not compatible and cant reconfigure, so cant acquire
+                // Else try to reconfigure
+                if(!isFree())
+                    return false;       // cant reconfigure because this bot is being used by some instances
+                // Else is not compatible but asked to reconfigure
+            }
+
+            // Claim, other instances cannot reconfigure this bot anymore
+            instances.add(instance);
         }
 
+        synchronized (configureLock) {
+            if(configure(instance, requestedState))
+                return true;
+        }
+        // Else failed
+        release(instance);
+        return false;
+    }
+
+    private synchronized boolean isOnlyUsedBy(StoryInstanceService instance) {
+        return instances.size() == 1 && instances.get(0) == instance;
+    }
+
+    private boolean configure(StoryInstanceService instance, StoryBuilder.NpcBuilder requestedState) {
         Narrator narrator = storyService.bot;
         try {
             // Need to start bot to configure
@@ -89,19 +138,23 @@ class StoryBot implements NarratorService {
 
             // Change name if required
             if(!Objects.equals(requestedState.name, guild.getSelfMember().getNickname())) {
-                if (!isFree())
+                if (!isOnlyUsedBy(instance))
                     throw new IllegalStateException("Expected name mismatch");
                 guild.getSelfMember().modifyNickname(requestedState.name).complete();
-                state.name = requestedState.name;
+                synchronized (this) {
+                    state.name = requestedState.name;
+                }
             }
 
             // Change color if required
             Role role = narrator.guild.getRolesByName(roleName, false).get(0);
             if(!Objects.equals(requestedState.color, state.color)) {
-                if (!isFree())
+                if (!isOnlyUsedBy(instance))
                     throw new IllegalStateException("Expected color mismatch");
                 role.getManager().setColor(requestedState.color).complete();
-                state.color = requestedState.color;
+                synchronized (this) {
+                    state.color = requestedState.color;
+                }
             }
 
             // Change profile pic if required
@@ -121,8 +174,10 @@ class StoryBot implements NarratorService {
 
                 // Attempt to change profile pic
                 jda.getSelfUser().getManager().setAvatar(avatar).complete();
-                state.profilePic = requestedState.profilePic;
-                state.lastProfilePicChange = System.currentTimeMillis();
+                synchronized (this) {
+                    state.profilePic = requestedState.profilePic;
+                    state.lastProfilePicChange = System.currentTimeMillis();
+                }
             }
 
             // Update save
@@ -138,9 +193,6 @@ class StoryBot implements NarratorService {
             return false;   // failed
         }
 
-        // Else configured, recognize instance
-        instances.add(instance);
-
         return true;
     }
 
@@ -156,12 +208,21 @@ class StoryBot implements NarratorService {
     }
 
     private void startBot() {
-        if(jda != null)
-            return;     // already started
+        // Claim the login, others wait for it outside of the lock
+        CompletableFuture<Void> started = new CompletableFuture<>();
+        CompletableFuture<Void> existing;
+        synchronized (this) {
+            existing = this.started;
+            if(existing == null)
+                this.started = started;
+        }
+        if(existing != null) {
+            existing.join();        // already started or being started by another thread
+            return;
+        }
 
         // Login and prepare all data
-        JDA parent = storyService.bot.jda;
-
+        JDA jda = null;
         try {
             log.info("Starting {}", roleName);
 
@@ -171,10 +232,10 @@ class StoryBot implements NarratorService {
 
             jda = JDABuilder.createDefault(token)
 //                    .setStatus(OnlineStatus.INVISIBLE)
-                    // Piggy back on parent pool
-//                    .setCallbackPool(parent.getCallbackPool(), false)
-//                    .setGatewayPool(parent.getGatewayPool(), false)
-//                    .setRateLimitPool(parent.getRateLimitPool(), false)
+                    // Share pools between all story bots
+                    .setCallbackPool(storyService.bot.executor, false)
+                    .setGatewayPool(storyService.bot.gatewayPool, false)
+                    .setRateLimitPool(storyService.bot.rateLimitPool, false)
                     .setWebsocketFactory(webSocketFactory)
                     .build().awaitReady();
 
@@ -182,16 +243,29 @@ class StoryBot implements NarratorService {
             jda.getGuilds().forEach(guild -> log.info("Found guild: {}", guild.getName()));
 
             // Get guild
-            guild = jda.getGuilds().stream().filter(guild -> guild.getName().equals(storyService.bot.serverName)).findAny().orElseThrow(() -> {
+            Guild guild = jda.getGuilds().stream().filter(g -> g.getName().equals(storyService.bot.serverName)).findAny().orElseThrow(() -> {
                 throw new RuntimeException("Failed to find guild");
             });
 
+            synchronized (this) {
+                this.guild = guild;
+                this.jda = jda;
+            }
+
             // Request timeout check
             storyService.bot.scheduleService(this, storyService.config.storyBotTimeout);
 
+            started.complete(null);
+
         } catch (Throwable e) {
-            stopBot();
-            throw new RuntimeException("Unable to start story bot", e);
+            if(jda != null)
+                jda.shutdown();
+            synchronized (this) {
+                this.started = null;        // can be started again
+            }
+            RuntimeException exception = new RuntimeException("Unable to start story bot", e);
+            started.completeExceptionally(exception);
+            throw exception;
         }
     }
 
@@ -202,12 +276,13 @@ class StoryBot implements NarratorService {
             jda.shutdown();
             jda = null;
             guild = null;
+            started = null;
         }
     }
 
     @Override
-    public long processService(Narrator bot) {
-        if(isFree()) {
+    public synchronized long processService(Narrator bot) {
+        if(isFree() && !isWarm) {
             stopBot();
             return -1;      // stop timeout check
         }
@@ -216,7 +291,7 @@ class StoryBot implements NarratorService {
         return storyService.config.storyBotTimeout;
     }
 
-    boolean isFree() {
+    synchronized boolean isFree() {
         return instances.isEmpty();
     }
 }
@@ -1,5 +1,6 @@
 package com.kaigan.bots.narrator.story;
 
+import com.badlogic.gdx.utils.IntArray;
 import com.kaigan.bots.narrator.Narrator;
 import com.kaigan.bots.narrator.NarratorProvider;
 import net.dv8tion.jda.internal.utils.Checks;
@@ -10,6 +11,8 @@ import sengine.sheets.SheetStack;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @SheetFields(fields = {
         "title", "author", "description",
@@ -37,7 +40,7 @@ public class StoryBuilder implements NarratorProvider, OnSheetEnded {
             profilePic = url;
 
             // Download file
-            SheetStack.first(NarratorProvider.class).getBot().getFile(url);
+            SheetStack.first(NarratorProvider.class).requestFile(url);
         }
     }
 
@@ -48,6 +51,9 @@ public class StoryBuilder implements NarratorProvider, OnSheetEnded {
 
     public transient Narrator bot;
 
+    // Files referenced by this story, downloaded concurrently while parsing
+    private transient List<CompletableFuture<String>> files = new ArrayList<>();
+
     public String title;
     public String author;
     public String description;
@@ -58,6 +64,9 @@ public class StoryBuilder implements NarratorProvider, OnSheetEnded {
 
     public List<StoryChannelBuilder> channels = new ArrayList<>();
 
+    // Sheet of each channel, sheets may be parsed concurrently but channels are kept in sheet order
+    private transient IntArray channelSheets = new IntArray();
+
     public StoryBuilder() {
         // no-arg constructor for mass serializer
     }
@@ -66,8 +75,35 @@ public class StoryBuilder implements NarratorProvider, OnSheetEnded {
         this.bot = bot;
     }
 
+    // Field methods, sheets may set root fields concurrently
+
+    public synchronized void title(String title) {
+        this.title = title;
+    }
+
+    public synchronized void author(String author) {
+        this.author = author;
+    }
+
+    public synchronized void description(String description) {
+        this.description = description;
+    }
+
+    public synchronized void npcs(NpcBuilder[] npcs) {
+        this.npcs = npcs;
+    }
+
+    public synchronized void players(PlayerBuilder[] players) {
+        this.players = players;
+    }
+
     public synchronized void channel(StoryChannelBuilder channel) {
-        channels.add(channel);
+        int sheet = SheetStack.sheet();
+        int index = channelSheets.size;
+        while(index > 0 && channelSheets.items[index - 1] > sheet)
+            index--;
+        channels.add(index, channel);
+        channelSheets.insert(index, sheet);
     }
 
     @Override
@@ -75,6 +111,11 @@ public class StoryBuilder implements NarratorProvider, OnSheetEnded {
         return bot;
     }
 
+    @Override
+    public synchronized void requestFile(String url) {
+        files.add(bot.prefetchFile(url));
+    }
+
 
     @Override
     public void onSheetEnded() {
@@ -83,5 +124,21 @@ public class StoryBuilder implements NarratorProvider, OnSheetEnded {
         Checks.notBlank(author, "author");
         Checks.notEmpty(channels, "channels");
         Checks.notEmpty(players, "players");
+
+        // Wait for all files to be downloaded
+        List<CompletableFuture<String>> requested;
+        synchronized (this) {
+            requested = files;
+            files = new ArrayList<>();
+        }
+        for(CompletableFuture<String> file : requested) {
+            try {
+                file.join();
+            } catch (CompletionException e) {
+                if(e.getCause() instanceof ParseException)
+                    throw (ParseException) e.getCause();
+                throw new ParseException("Failed to download file", e.getCause());
+            }
+        }
     }
 }
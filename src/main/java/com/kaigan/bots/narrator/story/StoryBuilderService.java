@@ -61,7 +61,7 @@ class StoryBuilderService implements NarratorService {
             // Else successful, parse body
             SheetParser parser = new SheetParser();
             StoryBuilder builder = new StoryBuilder(storyService.bot);
-            builder = parser.parseXLS(response.body().byteStream(), StoryBuilder.class, builder);
+            builder = parser.parseXLS(response.body().byteStream(), StoryBuilder.class, builder, storyService.bot.executor, storyService.config.storyParseSheets);
 
             log.error("received {}", builder);
 
@@ -102,7 +102,7 @@ class StoryBuilderService implements NarratorService {
             StoryService.StoryInfo storyInfo = storyService.saveStory(builder, user.getId(), docId);
 
             // Inform success
-            bot.queue(() -> storyService.config.uploadSuccessMessage.select().edit(
+            bot.queue(statusMessage.getChannel(), () -> storyService.config.uploadSuccessMessage.select().edit(
                     bot,
                     statusMessage,
                     "sender", user.getAsMention(),
@@ -123,7 +123,7 @@ class StoryBuilderService implements NarratorService {
 
             // Update status
             String finalMessage = message;
-            bot.queue(() -> storyService.config.uploadErrorMessage.select().edit(bot, statusMessage,
+            bot.queue(statusMessage.getChannel(), () -> storyService.config.uploadErrorMessage.select().edit(bot, statusMessage,
                     "sender", user.getAsMention(),
                     "error", finalMessage
             ), log, "Update status message to inform failure");
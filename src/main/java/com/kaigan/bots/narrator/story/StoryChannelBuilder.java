@@ -7,6 +7,7 @@ import sengine.sheets.OnSheetEnded;
 import sengine.sheets.ParseException;
 import sengine.sheets.SheetFields;
 import sengine.sheets.SheetParser;
+import sengine.sheets.SheetStack;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -22,37 +23,75 @@ public class StoryChannelBuilder {
 
     public final List<Conversation> conversations = new ArrayList<>();
 
+    private transient DialogueIndex index;
+
+    /**
+     * State shared by all conversations of a channel while it is being parsed, so channels can be parsed concurrently.
+     */
+    static class ParseContext {
+        int linkCounter = 0;                // links are unique for each dialogue tree
+        String selectedPlayer;
+        String selectedNpc;
+
+        Range switchTime = ConversationBuilder.defaultSwitchTime;
+        Range sentenceTime = ConversationBuilder.defaultSentenceTime;
+        float wordsPerMinute = ConversationBuilder.defaultWordsPerMinute;
+
+        String nextLinkName() {
+            return ConversationBuilder.linkPrefix + linkCounter++;
+        }
+    }
+
+    private transient ParseContext context = new ParseContext();
+
+    /**
+     * @return context of the channel being parsed on this thread, or null if not parsing a channel
+     */
+    static ParseContext context() {
+        StoryChannelBuilder channel = SheetStack.last(StoryChannelBuilder.class);
+        return channel != null ? channel.context : null;
+    }
+
+    static String selectedPlayer() {
+        ParseContext context = context();
+        return context != null ? context.selectedPlayer : null;
+    }
+
+    static void selectPlayer(String player) {
+        ParseContext context = context();
+        if(context != null)
+            context.selectedPlayer = player;
+    }
+
+    static String selectedNpc() {
+        ParseContext context = context();
+        return context != null ? context.selectedNpc : null;
+    }
+
+    static void selectNpc(String npc) {
+        ParseContext context = context();
+        if(context != null)
+            context.selectedNpc = npc;
+    }
+
     public void name(String name) {
         if(!name.matches("[a-z0-9\\-]+") || name.length() >= 100)
             throw new ParseException("invalid channel name");
         this.name = name;
     }
 
-    public StoryChannelBuilder() {
-        ConversationBuilder.linkCounter = 0;                // Reset links for each dialogue tree
-
-        // Reset timers
-        ConversationBuilder.switchTime = ConversationBuilder.defaultSwitchTime;
-        ConversationBuilder.sentenceTime = ConversationBuilder.defaultSentenceTime;
-        ConversationBuilder.wordsPerMinute = ConversationBuilder.defaultWordsPerMinute;
-    }
-
 
     @SheetFields(fields = { "tags" })
     public static class ConversationBuilder implements OnSheetEnded {
 
-        public static int linkCounter = 0;
-        public static String linkPrefix = "__LINK";
-        public static String selectedPlayer;
-        public static String selectedNpc;
+        public static final String linkPrefix = "__LINK";
 
-        public static Range defaultSwitchTime = new Range(0.3f, 0.3f);
-        public static Range defaultSentenceTime = new Range(0.9f, 0.8f);                 // 0.9f, 0.8f
-        public static float defaultWordsPerMinute = 6f;                 // 4f
+        public static final Range defaultSwitchTime = new Range(0.3f, 0.3f);
+        public static final Range defaultSentenceTime = new Range(0.9f, 0.8f);                 // 0.9f, 0.8f
+        public static final float defaultWordsPerMinute = 6f;                 // 4f
 
-        private static Range switchTime = defaultSwitchTime;
-        private static Range sentenceTime = defaultSentenceTime;
-        private static float wordsPerMinute = defaultWordsPerMinute;
+        // Shared with other conversations of the channel, own context if not created within a channel
+        private final ParseContext context;
 
         public final List<String> tags = new ArrayList<>();
 
@@ -72,6 +111,11 @@ public class StoryChannelBuilder {
         private float queuedIdleTime = 0;
         private float queuedTypingTime = 0;
 
+        public ConversationBuilder() {
+            ParseContext context = StoryChannelBuilder.context();
+            this.context = context != null ? context : new ParseContext();
+        }
+
         public void tags(String csv) { tags.addAll(Arrays.asList(SheetParser.splitStringCSV(csv))); }
 
         public void repeatable() {
@@ -82,10 +126,8 @@ public class StoryChannelBuilder {
             if(builder == null || builder.conversations.isEmpty())
                 throw new ParseException("Missing added conversation");
             // Get a unique start and end name for this section
-            String sectionOpenName = linkPrefix + linkCounter;
-            linkCounter++;
-            String sectionFinishedName = linkPrefix + linkCounter;
-            linkCounter++;
+            String sectionOpenName = context.nextLinkName();
+            String sectionFinishedName = context.nextLinkName();
             // Add open and finish links to this section
             Conversation firstConversation = builder.conversations.get(0);
             firstConversation.tags.add(sectionOpenName);
@@ -115,8 +157,7 @@ public class StoryChannelBuilder {
             if(builder.conversations.isEmpty())
                 builder.push();
             // Get a unique name for this split
-            String splitName = linkPrefix + linkCounter;
-            linkCounter++;
+            String splitName = context.nextLinkName();
             splitTags.add(splitName);
             // Unlock this split
             unlocks(splitName);
@@ -135,8 +176,7 @@ public class StoryChannelBuilder {
                 throw new ParseException("Nothing to join");
 
             // Create new tag for the join
-            String joinName = linkPrefix + linkCounter;
-            linkCounter++;
+            String joinName = context.nextLinkName();
 
             unlocks(joinName);          // unlock the join automatically, but it will only unlock on IDLE
 
@@ -147,8 +187,8 @@ public class StoryChannelBuilder {
             // For all splits, keep track of another set of links so that each split can only be entered once
             for(ConversationBuilder split : splits) {
                 // Create a new tag
-//                String lockName = linkPrefix + linkCounter;
-                linkCounter++;
+//                String lockName = context.nextLinkName();
+                context.linkCounter++;
 
                 // Label this split with the absence of the new tag, so that this conversation does not recurse
                 conversations.addAll(split.conversations);
@@ -185,8 +225,7 @@ public class StoryChannelBuilder {
                 throw new ParseException("Nothing to join");
 
             // Get a unique name for this join
-            String joinName = linkPrefix + linkCounter;
-            linkCounter++;
+            String joinName = context.nextLinkName();
 
             // Compile all split tags into one
             List<String> allTags = new ArrayList<>(splitTags);
@@ -194,8 +233,7 @@ public class StoryChannelBuilder {
             // For all splits, automatically unlock this join if either of the splits were unlocked
             for(ConversationBuilder split : splits) {
                 // Create a new tag
-                String lockName = linkPrefix + linkCounter;
-                linkCounter++;
+                String lockName = context.nextLinkName();
                 // In the first conversation, lock all other splits
                 conversations.addAll(split.conversations);
                 Conversation conversation = split.conversations.get(0);
@@ -226,8 +264,7 @@ public class StoryChannelBuilder {
                 throw new ParseException("Nothing to join");
 
             // Get a unique name for this join
-            String joinName = linkPrefix + linkCounter;
-            linkCounter++;
+            String joinName = context.nextLinkName();
 
             // Compile all split tags into one
             List<String> allTags = new ArrayList<>(splitTags);
@@ -257,21 +294,21 @@ public class StoryChannelBuilder {
 
         // Timing
         public void conversation_speed(float minTime, float randomTime) {
-            ConversationBuilder.switchTime = new Range(minTime, randomTime);
+            context.switchTime = new Range(minTime, randomTime);
         }
 
         public void typing_speed(float minTime, float randomTime, float wordsPerMinute) {
-            ConversationBuilder.sentenceTime = new Range(minTime, randomTime);
-            ConversationBuilder.wordsPerMinute = wordsPerMinute;
+            context.sentenceTime = new Range(minTime, randomTime);
+            context.wordsPerMinute = wordsPerMinute;
         }
 
         public void reset_conversation_speed() {
-            ConversationBuilder.switchTime = ConversationBuilder.defaultSwitchTime;
+            context.switchTime = defaultSwitchTime;
         }
 
         public void reset_typing_speed() {
-            ConversationBuilder.sentenceTime = ConversationBuilder.defaultSentenceTime;
-            ConversationBuilder.wordsPerMinute = ConversationBuilder.defaultWordsPerMinute;
+            context.sentenceTime = defaultSentenceTime;
+            context.wordsPerMinute = defaultWordsPerMinute;
         }
 
         public void wait(float seconds) {
@@ -292,8 +329,7 @@ public class StoryChannelBuilder {
                 conversations.add(current);
 
                 if(!isRepeatable) {
-                    String nextLinkName = linkPrefix + linkCounter;
-                    linkCounter++;
+                    String nextLinkName = context.nextLinkName();
 
                     current.tags.add("!" + nextLinkName);
                     current.tagsToUnlock.add(nextLinkName);
@@ -301,12 +337,10 @@ public class StoryChannelBuilder {
             }
             else if(conversations.size() == 1) {
                 // Create a new link to close up first conversation
-//                String linkName = linkPrefix + linkCounter;
-//                linkCounter++;
+//                String linkName = context.nextLinkName();
 //                current.tags = appendString(current.tags, "!" + linkName);
                 // Create a new link for second conversation
-                String nextLinkName = linkPrefix + linkCounter;
-                linkCounter++;
+                String nextLinkName = context.nextLinkName();
 //                current.tags_to_unlock = appendString(current.tags_to_unlock, linkName + ", " + nextLinkName);
                 current.tagsToUnlock.add(nextLinkName);
 
@@ -317,8 +351,7 @@ public class StoryChannelBuilder {
             }
             else {
                 // Create a new link for next conversation
-                String nextLinkName = linkPrefix + linkCounter;
-                linkCounter++;
+                String nextLinkName = context.nextLinkName();
 
                 current.tagsToUnlock.add(nextLinkName);
 
@@ -358,8 +391,8 @@ public class StoryChannelBuilder {
                 if (!message.npc.equals("user") && message.idleTime == 0 && message.typingTime == 0) {     // live user responses have no timing
                     // Check if new switching person
                     if(!currentSender.equals(message.npc))
-                        queuedIdleTime += switchTime.generate();
-                    message.idleTime = queuedIdleTime + sentenceTime.generate();
+                        queuedIdleTime += context.switchTime.generate();
+                    message.idleTime = queuedIdleTime + context.sentenceTime.generate();
                     queuedIdleTime = 0;
 
                     // Typing speed
@@ -381,7 +414,7 @@ public class StoryChannelBuilder {
                             }
                         }
                     }
-                    message.typingTime = (1f / wordsPerMinute) * words;
+                    message.typingTime = (1f / context.wordsPerMinute) * words;
                     message.typingTime += queuedTypingTime;
                     queuedTypingTime = 0;
                 }
@@ -455,10 +488,22 @@ public class StoryChannelBuilder {
     }
 
 
+    public synchronized DialogueIndex getIndex() {
+        // Compile once, shared by all dialogue trees of this channel
+        if(index == null)
+            index = new DialogueIndex(this);
+        return index;
+    }
+
+    synchronized void setIndex(DialogueIndex index) {
+        // Index saved with a compiled story
+        this.index = index;
+    }
+
     public void add(ConversationBuilder builder) {
         // Reset selected npc and player
-        ConversationBuilder.selectedPlayer = null;
-        ConversationBuilder.selectedNpc = null;
+        context.selectedPlayer = null;
+        context.selectedNpc = null;
         conversations.addAll(builder.conversations);
     }
 
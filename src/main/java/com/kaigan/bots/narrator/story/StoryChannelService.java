@@ -10,10 +10,12 @@ import net.dv8tion.jda.api.Permission;
 import net.dv8tion.jda.api.entities.*;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import net.dv8tion.jda.api.events.message.react.MessageReactionAddEvent;
+import net.dv8tion.jda.api.requests.RestAction;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class StoryChannelService implements NarratorService, ScriptState.OnChangeListener<Object> {
@@ -83,12 +85,14 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
                     "selection", sb.toString().trim(),
                     "player", player != null ? player.getAsMention() : narrator.guild.getPublicRole().getAsMention()        // default to @everyone if unable to resolve player
             ).complete();
-            // Add choices
+            narrator.registerMessage(selectionMessage.getIdLong(), StoryChannelService.this);
+            // Add choices, all reactions are sent together
+            List<Supplier<RestAction<Void>>> reactions = new ArrayList<>(selection.size());
             for(int c = 0; c < selection.size(); c++) {
-                // Resolve emote
-                Emote emote = channel.getGuild().getEmoteById(choiceEmotes.get(c).getId());
-                narrator.queue(() -> selectionMessage.addReaction(emote), log, "Adding choice emote to reply selection message");
+                Emote emote = choiceEmotes.get(c);
+                reactions.add(() -> selectionMessage.addReaction(emote));
             }
+            narrator.queueAll(channel, reactions, log, "Adding choice emote to reply selection message");
         }
     }
 
@@ -109,6 +113,10 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
     private TextChannel lastTypingChannel = null;
     private long tLastTypingTime = -1;
 
+    // Text messages due at the same time from the same sender are merged into one message
+    private TextChannel pendingChannel = null;
+    private final StringBuilder pendingText = new StringBuilder();
+
     private final Map<String, TextChannel> storyBotChannels = new HashMap<>();
     private final Set<String> players = new HashSet<>();
 
@@ -119,6 +127,7 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
 
     public void reset() {
         tree.finishCurrent();
+        wake();
     }
 
     public void addNpc(String npc, String message) {
@@ -137,7 +146,7 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
         StoryBot storyBot = instance.storyBots.get(npc);
         // Add permission
         Member botMember = narrator.guild.getMemberById(storyBot.getMemberId());
-        narrator.queue(() -> channel.upsertPermissionOverride(botMember).setAllow(Permission.VIEW_CHANNEL.getRawValue() | Permission.ALL_TEXT_PERMISSIONS),
+        narrator.queue(channel, () -> channel.upsertPermissionOverride(botMember).setAllow(Permission.VIEW_CHANNEL.getRawValue() | Permission.ALL_TEXT_PERMISSIONS),
                 log, "Allow npc story bot access to channel " + builder.name
         );
         // Resolve bot channel
@@ -145,7 +154,7 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
         storyBotChannels.put(npc, botChannel);
         if (message != null && !message.isEmpty()) {
             // Send message
-            narrator.queue(() -> channel.sendMessage(narrator.format(message,
+            narrator.queue(channel, () -> channel.sendMessage(narrator.format(message,
                     "npc", botMember.getAsMention(),
                     instance.formatResolver
             )), log, "Sending npc added message");
@@ -176,13 +185,13 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
         // Send message
         Member botMember = narrator.guild.getMemberById(botChannel.getGuild().getSelfMember().getId());
         if (message != null && !message.isEmpty()) {
-            narrator.queue(() -> channel.sendMessage(narrator.format(message,
+            narrator.queue(channel, () -> channel.sendMessage(narrator.format(message,
                     "npc", botMember.getAsMention(),
                     instance.formatResolver
             )), log, "Sending npc left message");
         }
         // Remove permission
-        narrator.queue(() -> channel.getPermissionOverride(botMember).delete(),
+        narrator.queue(channel, () -> channel.getPermissionOverride(botMember).delete(),
                 log, "Remove npc story bot access to channel " + builder.name
         );
     }
@@ -204,11 +213,11 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
         Narrator narrator = instance.storyService.bot;
         StoryBot storyBot = instance.storyBots.get(player);
         // Add permissions for both
-        narrator.queue(() -> channel.upsertPermissionOverride(participant).setAllow(Permission.VIEW_CHANNEL.getRawValue() | Permission.ALL_TEXT_PERMISSIONS),
+        narrator.queue(channel, () -> channel.upsertPermissionOverride(participant).setAllow(Permission.VIEW_CHANNEL.getRawValue() | Permission.ALL_TEXT_PERMISSIONS),
                 log, "Allow participant access to channel " + builder.name
         );
         Member botMember = narrator.guild.getMemberById(storyBot.getMemberId());
-        narrator.queue(() -> channel.upsertPermissionOverride(botMember).setAllow(Permission.VIEW_CHANNEL.getRawValue() | Permission.ALL_TEXT_PERMISSIONS),
+        narrator.queue(channel, () -> channel.upsertPermissionOverride(botMember).setAllow(Permission.VIEW_CHANNEL.getRawValue() | Permission.ALL_TEXT_PERMISSIONS),
                 log, "Allow player story bot access to channel " + builder.name
         );
         // Resolve bot channel
@@ -216,7 +225,7 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
         storyBotChannels.put(player, botChannel);
         players.add(player);
         // Send message
-        narrator.queue(() -> channel.sendMessage(narrator.format(message,
+        narrator.queue(channel, () -> channel.sendMessage(narrator.format(message,
                 "participant", participant.getAsMention(),
                 "player", botMember.getAsMention(),
                 instance.formatResolver
@@ -236,7 +245,7 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
         Member participant = instance.players.get(player);
         Member botMember = narrator.guild.getMemberById(botChannel.getGuild().getSelfMember().getId());
         if(participant != null && message != null && !message.isEmpty()) {
-            narrator.queue(() -> channel.sendMessage(narrator.format(message,
+            narrator.queue(channel, () -> channel.sendMessage(narrator.format(message,
                     "player", botMember.getAsMention(),
                     "participant", participant.getAsMention(),
                     instance.formatResolver
@@ -245,14 +254,14 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
         // Remove permissions
         PermissionOverride botOVerride = channel.getPermissionOverride(botMember);
         if(botOVerride != null) {
-            narrator.queue(botOVerride::delete,
+            narrator.queue(channel, botOVerride::delete,
                     log, "Remove npc story bot access to channel " + builder.name
             );
         }
         if(participant != null) {       // null check cuz owners can assume 2 characters at once
             PermissionOverride playerOVerride = channel.getPermissionOverride(participant);
             if(playerOVerride != null) {
-                narrator.queue(playerOVerride::delete,
+                narrator.queue(channel, playerOVerride::delete,
                         log, "Remove npc story bot access to channel " + builder.name
                 );
             }
@@ -272,14 +281,14 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
         // Remove permissions
         PermissionOverride botOVerride = channel.getPermissionOverride(botMember);
         if(botOVerride != null) {
-            narrator.queue(botOVerride::delete,
+            narrator.queue(channel, botOVerride::delete,
                     log, "Remove npc story bot access to channel " + builder.name
             );
         }
         if(participant != null) {       // null check cuz owners can assume 2 characters at once
             PermissionOverride playerOVerride = channel.getPermissionOverride(participant);
             if(playerOVerride != null) {
-                narrator.queue(playerOVerride::delete,
+                narrator.queue(channel, playerOVerride::delete,
                         log, "Remove npc story bot access to channel " + builder.name
                 );
             }
@@ -303,10 +312,17 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
         instance.states.addOnChangeListener(builder.name + ".", Object.class, this);
     }
 
+    @Override
+    public Object getDispatchKey() {
+        return instance;        // run on the same lane as the owning instance
+    }
+
     @Override
     public long onServiceStart(Narrator bot) {
-        if(channel != null)
+        if(channel != null) {
+            bot.registerChannel(channel.getIdLong(), this);
             return -1;      // Already initialized
+        }
 
         // Else initialize, create channel
         Category storyCategory = bot.guild.getCategoriesByName(instance.storyService.config.storyCategory, false).get(0);
@@ -323,6 +339,7 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
 
         // Add narrator channel lookup
         storyBotChannels.put(StoryChannelBuilder.ORIGIN_NARRATOR, channel);
+        bot.registerChannel(channel.getIdLong(), this);
 
         // Start process loop
         return 0;
@@ -377,9 +394,7 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
                         SenderMessage message = tree.current.senderMessages.get(currentMessage);
                         // Build this message
                         TextChannel originChannel = resolveSenderChannel(message.npc);
-                        bot.queue(() -> message.build(bot, originChannel,
-                                instance.formatResolver
-                        ), log, "Send message to channel " + channel.getName());
+                        sendMessage(bot, originChannel, message);
                         instance.resetInstanceTimeout();            // Reset instance timeout
                         tTypingScheduled = Long.MAX_VALUE;
                     }
@@ -387,6 +402,8 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
                     currentMessage++;
                     // Try next message
                     if (currentMessage >= tree.current.senderMessages.size()) {
+                        // Send remaining messages before script can send its own
+                        flushMessages(bot);
                         // Run script if available
                         try {
                             if(tree.current.script != null) {
@@ -465,7 +482,65 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
             cancelReplySelection();
         }
 
-        return instance.storyService.config.storyChannelTimestep;
+        flushMessages(bot);
+
+        // Sleep until the next scheduled event, tag changes and replies wake this service up earlier
+        return nextProcessDelay(currentTime);
+    }
+
+    private long nextProcessDelay(long currentTime) {
+        long tNextProcess;
+        if(tree.current != null)
+            tNextProcess = Math.min(tTypingScheduled, tNextMessageScheduled);
+        else if(!hasCheckedDialogueTree)
+            return 0;       // tree changed while processing, check again now
+        else {
+            tNextProcess = Math.min(tReplySelectionScheduled, tNextTimedReplyScheduled);
+            if(tNextProcess != Long.MAX_VALUE)
+                tNextProcess++;     // reply selections and timed replies only trigger after their time
+        }
+        if(tNextProcess == Long.MAX_VALUE)
+            return -1;      // idle until woken up
+        return Math.max(0, tNextProcess - currentTime);
+    }
+
+    private void wake() {
+        if(channel == null)
+            return;         // not started yet
+        // Process as soon as possible
+        instance.storyService.bot.scheduleService(this, 0);
+    }
+
+    private void sendMessage(Narrator bot, TextChannel originChannel, SenderMessage message) {
+        if(message.embed != null || message.file != null || message.message == null) {
+            // Cannot be merged, send after previous messages
+            flushMessages(bot);
+            bot.queue(channel, () -> message.build(bot, originChannel,
+                    instance.formatResolver
+            ), log, "Send message to channel " + channel.getName());
+            return;
+        }
+        String text = bot.format(message.message, instance.formatResolver);
+        if(pendingChannel == originChannel && pendingText.length() + 1 + text.length() <= Message.MAX_CONTENT_LENGTH) {
+            // Same sender and still fits, merge with previous message
+            pendingText.append('\n').append(text);
+            bot.actionsSaved.increment();
+            return;
+        }
+        // Else start a new message
+        flushMessages(bot);
+        pendingChannel = originChannel;
+        pendingText.append(text);
+    }
+
+    private void flushMessages(Narrator bot) {
+        if(pendingChannel == null)
+            return;     // nothing to send
+        TextChannel originChannel = pendingChannel;
+        String text = pendingText.toString();
+        pendingChannel = null;
+        pendingText.setLength(0);
+        bot.queue(channel, () -> originChannel.sendMessage(text), log, "Send message to channel " + channel.getName());
     }
 
     private void refreshReplySelection() {
@@ -490,8 +565,11 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
 
     private void cancelReplySelection() {
         // Remove previous selection messages
-        for(ReplySelection replySelection : replySelections)
+        Narrator narrator = instance.storyService.bot;
+        for(ReplySelection replySelection : replySelections) {
+            narrator.unregisterMessage(replySelection.selectionMessage.getIdLong(), this);
             replySelection.selectionMessage.delete().queue();
+        }
         replySelections = Collections.emptyList();
     }
 
@@ -499,10 +577,14 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
     public boolean processReactionAdded(Narrator bot, MessageReactionAddEvent event) {
         if(event.getChannel() != channel)
             return false;       // not monitored
-        // Check monitored messages
-        ReplySelection selection = replySelections.stream()
-                .filter(replySelection -> replySelection.selectionMessage.getId().equals(event.getMessageId()))
-                .findFirst().orElse(null);
+        // Check monitored messages, only reactions to registered selection messages are routed here
+        ReplySelection selection = null;
+        for(ReplySelection replySelection : replySelections) {
+            if(replySelection.selectionMessage.getIdLong() == event.getMessageIdLong()) {
+                selection = replySelection;
+                break;
+            }
+        }
         if(selection == null)
             return false;       // not monitored
         // Check if the correct member made the choice
@@ -563,26 +645,42 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
         // Delete or update user message
         Narrator narrator = instance.storyService.bot;
         for(ReplySelection selection : replySelections) {
+            narrator.unregisterMessage(selection.selectionMessage.getIdLong(), this);
             if(message != null && selection.botName.contentEquals(message.player)) {
                 // Edit message
-                narrator.queue(selection.selectionMessage::clearReactions, log, "Clear choice reactions for selection message");
-                narrator.queue(() -> selection.selectionMessage.editMessage(userMessage), log, "Edit reply selection message with final reply");
+                narrator.queue(selection.channel, selection.selectionMessage::clearReactions, log, "Clear choice reactions for selection message");
+                narrator.queue(selection.channel, () -> selection.selectionMessage.editMessage(userMessage), log, "Edit reply selection message with final reply");
             }
             else
-                narrator.queue(selection.selectionMessage::delete, log, "Delete expired selection message");
+                narrator.queue(selection.channel, selection.selectionMessage::delete, log, "Delete expired selection message");
         }
         // Remember
         keyboardReply = userMessage;
 
         // Done
         replySelections = Collections.emptyList();
+        wake();
         return true;
     }
 
+    @Override
+    public boolean isReactionRouted() {
+        return true;        // reply selection messages are registered
+    }
+
+    @Override
+    public boolean isMessageRouted() {
+        return true;        // story channel is registered
+    }
+
     @Override
     public boolean onServiceStop(Narrator bot) {
+        // Stop tracking script states, they belong to the instance
+        tree.dispose();
+        instance.states.removeOnChangeListener(builder.name + ".", this);
+
         // Delete channel
-        bot.queue(() -> channel.delete(), log, "Delete story channel " + builder.name);
+        bot.queue(channel, () -> channel.delete(), log, "Delete story channel " + builder.name);
         return true;
     }
 
@@ -590,6 +688,7 @@ public class StoryChannelService implements NarratorService, ScriptState.OnChang
     public void onChanged(String name, Object var, Object prev) {
         // Invalidate tree
         hasCheckedDialogueTree = false;
+        wake();
     }
 
 }
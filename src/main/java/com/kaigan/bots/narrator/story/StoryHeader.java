@@ -0,0 +1,38 @@
+package com.kaigan.bots.narrator.story;
+
+import sengine.mass.MassSerializable;
+
+/**
+ * What invites show of a story, saved ahead of the story in {@link CompiledStory} so it can be read without loading
+ * conversations. Npcs and players are shared with the story when saved and loaded together.
+ */
+public class StoryHeader implements MassSerializable {
+
+    public final String title;
+    public final String author;
+    public final String description;
+
+    public final StoryBuilder.NpcBuilder[] npcs;          // might be null
+    public final StoryBuilder.PlayerBuilder[] players;
+    public final String[] channels;                       // names of all channels
+
+    public StoryHeader(StoryBuilder story) {
+        this(story.title, story.author, story.description, story.npcs, story.players,
+                story.channels.stream().map(channel -> channel.name).toArray(String[]::new));
+    }
+
+    @MassConstructor
+    public StoryHeader(String title, String author, String description, StoryBuilder.NpcBuilder[] npcs, StoryBuilder.PlayerBuilder[] players, String[] channels) {
+        this.title = title;
+        this.author = author;
+        this.description = description;
+        this.npcs = npcs;
+        this.players = players;
+        this.channels = channels;
+    }
+
+    @Override
+    public Object[] mass() {
+        return new Object[] { title, author, description, npcs, players, channels };
+    }
+}
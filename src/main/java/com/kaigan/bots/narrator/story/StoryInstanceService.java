@@ -12,12 +12,15 @@ import net.dv8tion.jda.api.entities.*;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import net.dv8tion.jda.api.events.message.react.MessageReactionAddEvent;
 import net.dv8tion.jda.api.events.message.react.MessageReactionRemoveEvent;
+import net.dv8tion.jda.api.requests.RestAction;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.script.ScriptException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 public class StoryInstanceService implements NarratorService {
@@ -36,7 +39,7 @@ public class StoryInstanceService implements NarratorService {
     private final String storyId;
 
     StoryService.StoryInfo storyInfo;
-    StoryBuilder builder;
+    StoryHeader header;
 
     private Message introMessage;
     private List<Emote> introChoiceEmotes;
@@ -46,7 +49,7 @@ public class StoryInstanceService implements NarratorService {
     final Map<String, StoryBot> storyBots = new HashMap<>();
     final Map<String, StoryChannelService> channels = new HashMap<>();
     final ScriptState states = new ScriptState();
-    final Map<String, Member> players = new HashMap<>();
+    final Map<String, Member> players = new ConcurrentHashMap<>();          // read by other instances when dispatch lanes are used
     final Map<Member, String> playerNameLookup = new HashMap<>();
 
     float chatTimingMultiplier = 1f;
@@ -55,7 +58,7 @@ public class StoryInstanceService implements NarratorService {
     private long tIntroConcludedTimeout = Long.MAX_VALUE;
     private long tInstanceTimeout = Long.MAX_VALUE;
 
-    private StartStatus status = StartStatus.WAITING;
+    private volatile StartStatus status = StartStatus.WAITING;
 
     // Script engine
     private ScriptInterface scriptEngine = null;
@@ -89,6 +92,25 @@ public class StoryInstanceService implements NarratorService {
 
     private void resetInstanceTimeout(long timeout) {
         tInstanceTimeout = System.currentTimeMillis() + timeout;
+        refreshTimeouts();
+    }
+
+    private long nextTimeoutDelay() {
+        long tNextTimeout = Math.min(tIntroConcludedTimeout, Math.min(tIntroInviteTimeout, tInstanceTimeout));
+        if(tNextTimeout == Long.MAX_VALUE)
+            return -1;      // nothing to wait for
+        return Math.max(0, tNextTimeout + 1 - System.currentTimeMillis());        // timeouts only trigger after their time
+    }
+
+    private void refreshTimeouts() {
+        Narrator bot = storyService.bot;
+        if(!bot.hasServiceStarted(this))
+            return;         // starting or already stopped, onServiceStart returns the first delay
+        // Wake up earlier only if the new timeout is before the scheduled one
+        long delay = nextTimeoutDelay();
+        long scheduled = bot.getServiceDelay(this);
+        if(delay != -1 && (scheduled == -1 || delay < scheduled))
+            bot.scheduleService(this, delay);
     }
 
     public void reset(String[] tags) {
@@ -116,6 +138,7 @@ public class StoryInstanceService implements NarratorService {
                 // Unrecognize player
                 players.remove(name);
                 playerNameLookup.remove(participant);
+                releasePlayer(participant);
                 if(sb.length() > 0)
                     sb.append(", ");
                 sb.append(participant.getAsMention());
@@ -133,9 +156,9 @@ public class StoryInstanceService implements NarratorService {
         // Publish message if available
         if(message != null && sb.length() > 0) {
             storyService.config.endingMessage.embed.color = color;
-            storyService.bot.queue(() -> storyService.config.endingMessage.build(storyService.bot, initiateChannel,
+            storyService.bot.queue(initiateChannel, () -> storyService.config.endingMessage.build(storyService.bot, initiateChannel,
                     "id", storyInfo.id,
-                    "title", builder.title,
+                    "title", header.title,
                     "message", storyService.bot.format(message,
                             "participant", sb.toString(),
                             formatResolver
@@ -151,17 +174,41 @@ public class StoryInstanceService implements NarratorService {
         this.storyId = storyId;
     }
 
+    @Override
+    public Object getDispatchKey() {
+        return this;        // each instance and its channels are serialized on its own lane
+    }
+
+    @Override
+    public boolean isReactionRouted() {
+        return true;        // intro message is registered while waiting for players
+    }
+
+    @Override
+    public boolean isMessageRouted() {
+        return true;        // initiate channel is registered
+    }
+
+    @Override
+    public boolean onServiceStop(Narrator bot) {
+        // Players still waiting when the invite is closed or timed out are free to join other instances
+        for(Member player : players.values())
+            storyService.leaveInstance(player, this);
+        return true;
+    }
+
     @Override
     public long onServiceStart(Narrator bot) {
         if(introMessage != null)
             throw new IllegalStateException("already started");     // UB
+        bot.registerChannel(initiateChannel.getIdLong(), this);
 
         // Get specified story
         storyInfo = storyService.findStory(storyId);
 
         if(storyInfo == null) {
             // Story not found
-            bot.queue(() -> storyService.config.storyNotFoundMessage.select().build(bot, initiateChannel,
+            bot.queue(initiateChannel, () -> storyService.config.storyNotFoundMessage.select().build(bot, initiateChannel,
                     "sender", initiateMember.getAsMention(),
                     "code", storyId
             ), log, "Send story not found message");
@@ -172,16 +219,12 @@ public class StoryInstanceService implements NarratorService {
         }
 
         // Check if player has already joined another instance
-        StoryInstanceService existing = bot.getServices(StoryInstanceService.class)
-                .filter(instance -> instance != this && instance.players.containsValue(initiateMember))
-                .findAny().orElse(null);
-        if(existing != null) {
+        StoryInstanceService existing = storyService.findInstance(initiateMember);
+        if(existing != null && existing != this) {
             // If this instance is still waiting, remove player and add to this invite
             if(existing.status == StartStatus.WAITING) {
                 // Remove player from that instance and refresh
-                existing.players.values().remove(initiateMember);
-                existing.playerNameLookup.remove(initiateMember);
-                existing.refreshIntroMessage();
+                existing.removeWaitingPlayer(bot, initiateMember);
             }
             else {
                 // Else prev instance already started
@@ -191,12 +234,12 @@ public class StoryInstanceService implements NarratorService {
             }
         }
 
-        // Load story
-        builder = storyService.loadStory(storyInfo);
+        // Load what the invite shows, the story is loaded once prepared
+        header = storyService.loadStoryHeader(storyInfo);
 
         // Prepare for tracking
         introChoiceEmotes = new ArrayList<>();
-        for (int c = 0; c < builder.players.length; c++) {
+        for (int c = 0; c < header.players.length; c++) {
             Emote emote = storyService.bot.getChoiceEmote(c).get();
             introChoiceEmotes.add(emote);
         }
@@ -206,7 +249,7 @@ public class StoryInstanceService implements NarratorService {
         refreshIntroMessage();
 
         // Monitor timeouts
-        return storyService.config.storyChannelTimestep;
+        return nextTimeoutDelay();
     }
 
     @Override
@@ -242,7 +285,8 @@ public class StoryInstanceService implements NarratorService {
             return -1;
         }
 
-        return storyService.config.storyChannelTimestep;
+        // Sleep until the next timeout
+        return nextTimeoutDelay();
     }
 
     @Override
@@ -273,7 +317,7 @@ public class StoryInstanceService implements NarratorService {
                         // Valid speed parameter, but only respond if its the owner of the story
                         if(event.getMember().getId().contentEquals(storyInfo.owner)) {
                             chatTimingMultiplier = 1f / speed;
-                            log.info("Setting speed to {} for instance {}", speed, builder.title);
+                            log.info("Setting speed to {} for instance {}", speed, header.title);
                         }
                     }
                 } catch (Throwable e) {
@@ -292,7 +336,7 @@ public class StoryInstanceService implements NarratorService {
                     // Okay, send message to all channels of quit request
                     for (StoryChannelService channel : channels.values()) {
                         SheetMessageBuilder quitMessage = storyService.config.instanceQuitMessage.select();
-                        bot.queue(() -> quitMessage.build(bot, channel.channel,
+                        bot.queue(channel.channel, () -> quitMessage.build(bot, channel.channel,
                                 "participant", event.getMember().getAsMention()
                         ), log, "Inform quit request");
                     }
@@ -306,7 +350,7 @@ public class StoryInstanceService implements NarratorService {
                     // Okay, send message to all channels of failing to quit
                     for (StoryChannelService channel : channels.values()) {
                         SheetMessageBuilder quitMessage = storyService.config.instanceQuitFailedMessage.select();
-                        bot.queue(() -> quitMessage.build(bot, channel.channel,
+                        bot.queue(channel.channel, () -> quitMessage.build(bot, channel.channel,
                                 "participant", event.getMember().getAsMention()
                         ), log, "Inform quit failed request");
                     }
@@ -323,7 +367,7 @@ public class StoryInstanceService implements NarratorService {
 
     @Override
     public boolean processReactionAdded(Narrator bot, MessageReactionAddEvent event) {
-        if(introMessage == null || !event.getMessageId().equals(introMessage.getId()) || status != StartStatus.WAITING)
+        if(introMessage == null || event.getMessageIdLong() != introMessage.getIdLong() || status != StartStatus.WAITING)
             return false;       // not monitored
 
         // Check if trying to close lobby
@@ -339,7 +383,7 @@ public class StoryInstanceService implements NarratorService {
         int index = introChoiceEmotes.indexOf(event.getReactionEmote().getEmote());
         if(index != -1) {
             // Chose a player slot, ignore if already occupied
-            String nameProperCase = builder.players[index].name;
+            String nameProperCase = header.players[index].name;
             String name = nameProperCase.toLowerCase();
             if(players.containsKey(name))
                 return false;       // ignore as someone already selected this slot
@@ -347,16 +391,12 @@ public class StoryInstanceService implements NarratorService {
             if(players.containsValue(event.getMember()) && !event.getMember().getId().equals(storyInfo.owner))
                 return false;       // already joined and not the owner, only allow owner to play as multiple players for testing
             // Else check if has joined another instance
-            StoryInstanceService existing = bot.getServices(StoryInstanceService.class)
-                    .filter(instance -> instance != this && instance.players.containsValue(event.getMember()))
-                    .findAny().orElse(null);
-            if(existing != null) {
+            StoryInstanceService existing = storyService.findInstance(event.getMember());
+            if(existing != null && existing != this) {
                 // If this instance is still waiting, remove player and add to this invite
                 if (existing.status == StartStatus.WAITING) {
                     // Remove player from that instance and refresh
-                    existing.players.values().remove(initiateMember);
-                    existing.playerNameLookup.remove(initiateMember);
-                    existing.refreshIntroMessage();
+                    existing.removeWaitingPlayer(bot, event.getMember());
                 } else
                     return false;       // already joined another instance, wait for it to finish first
             }
@@ -364,6 +404,7 @@ public class StoryInstanceService implements NarratorService {
             // Else can join
             players.put(name, event.getMember());
             playerNameLookup.put(event.getMember(), nameProperCase);
+            storyService.joinInstance(event.getMember(), this);
 
             // Attempt to prepare story and refresh intro message
             attemptStartStory();
@@ -375,14 +416,14 @@ public class StoryInstanceService implements NarratorService {
 
     @Override
     public boolean processReactionRemoved(Narrator bot, MessageReactionRemoveEvent event) {
-        if(introMessage == null || !event.getMessageId().equals(introMessage.getId()) || status != StartStatus.WAITING)
+        if(introMessage == null || event.getMessageIdLong() != introMessage.getIdLong() || status != StartStatus.WAITING)
             return false;       // not monitored
 
         // Check if trying to leave a player slot
         int index = introChoiceEmotes.indexOf(event.getReactionEmote().getEmote());
         if(index != -1) {
             // Remove if same player occupied
-            String name = builder.players[index].name.toLowerCase();
+            String name = header.players[index].name.toLowerCase();
             Member player = players.get(name);
             if(!event.getMember().equals(player))
                 return false;       // not the same person, ignore
@@ -390,6 +431,7 @@ public class StoryInstanceService implements NarratorService {
             // Else remove user from player slot
             players.remove(name);
             playerNameLookup.remove(player);
+            releasePlayer(player);
 
             // Refresh intro message
             refreshIntroMessage();
@@ -398,21 +440,53 @@ public class StoryInstanceService implements NarratorService {
         return false;
     }
 
+    private void removeWaitingPlayer(Narrator bot, Member member) {
+        // Players of another instance can only be modified on that instance's lane
+        bot.execute(this, () -> {
+            if(status != StartStatus.WAITING)
+                return;     // already started
+            players.values().remove(member);
+            playerNameLookup.remove(member);
+            releasePlayer(member);
+            refreshIntroMessage();
+        });
+    }
+
+    private void releasePlayer(Member member) {
+        if(!players.containsValue(member))
+            storyService.leaveInstance(member, this);       // owner might still be playing other slots
+    }
+
     private void attemptStartStory() {
-        if(players.size() < builder.players.length) {
+        if(players.size() < header.players.length) {
             refreshIntroMessage();
             return;         // not enough players
         }
 
         // Clear reactions
         introMessage.clearReactions().queue();
+        storyService.bot.unregisterMessage(introMessage.getIdLong(), this);
 
         // Else can try to prepare story
         status = StartStatus.PREPARING;
         refreshIntroMessage();
 
+        // Login required bots in parallel first, then continue on this instance's lane without blocking it
+        Narrator narrator = storyService.bot;
+        storyService.prepareBots(Optional.ofNullable(header.npcs).map(npcs -> npcs.length).orElse(0) + header.players.length)
+                .thenRunAsync(this::prepareStory, task -> narrator.execute(this, task));
+    }
+
+    private void prepareStory() {
+        if(!storyService.bot.hasServiceStarted(this))
+            return;         // stopped while logging in
+
         // Prepare story runtime
         try {
+            StoryBuilder builder = storyService.loadStory(storyInfo);
+            if(builder.players.length != header.players.length)
+                throw new IllegalStateException("Story was replaced while inviting: " + storyInfo.id);
+
             // Acquire all bots
             Stream.concat(Optional.ofNullable(builder.npcs).stream().flatMap(Arrays::stream), Arrays.stream(builder.players))
                     .map(npc -> storyService.requestBot(this, npc).orElseThrow(() -> new RuntimeException("Unable to acquire bot: " + npc.name)))
@@ -447,6 +521,7 @@ public class StoryInstanceService implements NarratorService {
         // Remove intro message after a while
         tIntroInviteTimeout = Long.MAX_VALUE;
         tIntroConcludedTimeout = System.currentTimeMillis() + storyService.config.introConcludedTimeout;
+        refreshTimeouts();
     }
 
     private void refreshIntroMessage() {
@@ -461,22 +536,22 @@ public class StoryInstanceService implements NarratorService {
         // Intro embed
         EmbedBuilder embedBuilder = new EmbedBuilder()
                 .setTitle(narrator.format(format.title,
-                        "title", builder.title,
+                        "title", header.title,
                         "id", storyInfo.id
                 ));
 
         // Header
         sb.append(narrator.format(format.description,
-                "author", builder.author,
-                "description", builder.description
+                "author", header.author,
+                "description", header.description
         ));
 
         sb.append("\n\n");
 
         // Assemble choices
-        for(int c = 0; c < builder.players.length; c++) {
-            Member participant = players.get(builder.players[c].name.toLowerCase());
-            StoryBuilder.PlayerBuilder playerBuilder = builder.players[c];
+        for(int c = 0; c < header.players.length; c++) {
+            Member participant = players.get(header.players[c].name.toLowerCase());
+            StoryBuilder.PlayerBuilder playerBuilder = header.players[c];
 
             if(c > 0)
                 sb.append("\n\n");
@@ -532,20 +607,23 @@ public class StoryInstanceService implements NarratorService {
         if(introMessage == null) {
             // Send new message
             introMessage = initiateChannel.sendMessage(messageBuilder.build()).complete();
+            storyService.bot.registerMessage(introMessage.getIdLong(), this);
 
-            // Choice emotes
+            // Choice emotes and cancel emote, all reactions are sent together
+            List<Supplier<RestAction<Void>>> reactions = new ArrayList<>(introChoiceEmotes.size() + 1);
             for(Emote emote : introChoiceEmotes)
-                storyService.bot.queue(() -> introMessage.addReaction(emote), log, "Adding choice emote to intro message");
-            // Cancel emote
-            storyService.bot.queue(() -> introMessage.addReaction(cancelEmote), log, "Adding cancel emote to intro message");
+                reactions.add(() -> introMessage.addReaction(emote));
+            reactions.add(() -> introMessage.addReaction(cancelEmote));
+            storyService.bot.queueAll(initiateChannel, reactions, log, "Adding choice and cancel emotes to intro message");
         }
         else {
             // Else just edit existing intro message
-            storyService.bot.queue(() -> introMessage.editMessage(messageBuilder.build()), log, "Refresh intro message");
+            storyService.bot.queue(initiateChannel, () -> introMessage.editMessage(messageBuilder.build()), log, "Refresh intro message");
         }
 
         // Queue idle timeout
         tIntroInviteTimeout = System.currentTimeMillis() + storyService.config.introInviteTimeout;
+        refreshTimeouts();
     }
 
     private void shutdownInstance() {
@@ -560,6 +638,8 @@ public class StoryInstanceService implements NarratorService {
         }
         channels.clear();
 
+        for(Member player : players.values())
+            storyService.leaveInstance(player, this);
         players.clear();
         playerNameLookup.clear();
 
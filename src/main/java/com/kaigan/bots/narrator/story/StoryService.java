@@ -2,6 +2,7 @@ package com.kaigan.bots.narrator.story;
 
 import com.kaigan.bots.narrator.*;
 import net.dv8tion.jda.api.entities.Category;
+import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import net.dv8tion.jda.internal.utils.Checks;
 import org.apache.commons.lang3.StringUtils;
@@ -10,18 +11,22 @@ import org.apache.logging.log4j.Logger;
 import sengine.calc.SetRandomizedSelector;
 import sengine.mass.Mass;
 import sengine.mass.MassSerializable;
-import sengine.mass.io.Input;
 import sengine.mass.io.Output;
 import sengine.sheets.OnSheetEnded;
 import sengine.sheets.SheetFields;
 
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -36,11 +41,16 @@ public class StoryService implements NarratorService {
 
     private static final String STORY_EXTENSION = ".story";
 
-    @SheetFields(requiredFields = {
+    @SheetFields(fields = {
+            "storyCacheMaxEntries", "storyCacheMaxBytes",
+            "storyBotWarmCount",
+            "storyParseSheets",
+            "storyChannelTimestep"
+    }, requiredFields = {
             "storiesPath",
             "codeGenerateMin", "codeGenerateMax",
             "names", "monitoredChannels",
-            "storyBots", "storyBotTimeout", "storyBotTypingInterval", "storyBotMinTypingInterval", "storyChannelTimestep", "storyReplySelectionDelay",
+            "storyBots", "storyBotTimeout", "storyBotTypingInterval", "storyBotMinTypingInterval", "storyReplySelectionDelay",
             "storyCategory",
             "uploadAcknowledgeMessage", "uploadUnknownError", "uploadErrorMessage", "uploadSuccessMessage", "uploadPrivatelyMessage",
             "storyNotFoundMessage",
@@ -92,6 +102,8 @@ public class StoryService implements NarratorService {
 
 
         public String storiesPath;
+        public int storyCacheMaxEntries = 16;
+        public long storyCacheMaxBytes = 64 * 1024 * 1024;         // 64 mb of story files
         public long codeGenerateMin = 1000;
         public long codeGenerateMax = 9999;
 
@@ -99,10 +111,11 @@ public class StoryService implements NarratorService {
         public String[] monitoredChannels;
 
         public StoryBotConfig[] storyBots;
+        public int storyBotWarmCount = 0;
+        public int storyParseSheets = 2;            // sheets of an uploaded story parsed at the same time, rows of each are kept until parsed
         public long storyBotTimeout;
         public long storyBotTypingInterval;
         public long storyBotMinTypingInterval;
-        public long storyChannelTimestep;
         public long storyReplySelectionDelay;
 
         public String storyCategory;
@@ -146,13 +159,18 @@ public class StoryService implements NarratorService {
         public void storyBotTimeout(String duration) { storyBotTimeout = NarratorBuilder.parseDuration(duration); }
         public void storyBotTypingInterval(String duration) { storyBotTypingInterval = NarratorBuilder.parseDuration(duration); }
         public void storyBotMinTypingInterval(String duration) { storyBotMinTypingInterval = NarratorBuilder.parseDuration(duration); }
-        public void storyChannelTimestep(String duration) { storyChannelTimestep = NarratorBuilder.parseDuration(duration); }
         public void storyReplySelectionDelay(String duration) { storyReplySelectionDelay = NarratorBuilder.parseDuration(duration); }
 
         public void introInviteTimeout(String duration) { introInviteTimeout = NarratorBuilder.parseDuration(duration); }
         public void introConcludedTimeout(String duration) { introConcludedTimeout = NarratorBuilder.parseDuration(duration); }
         public void instanceTimeout(String duration) { instanceTimeout = NarratorBuilder.parseDuration(duration); }
 
+        /**
+         * Ignored, story services now sleep until their next deadline. Still accepted so existing config sheets parse.
+         */
+        @Deprecated
+        public void storyChannelTimestep(String duration) { }
+
         public void instanceQuitMessage(SheetMessageBuilder[] array) { instanceQuitMessage = new SetRandomizedSelector<>(array); }
         public void instanceQuitFailedMessage(SheetMessageBuilder[] array) { instanceQuitFailedMessage = new SetRandomizedSelector<>(array); }
         public void instanceQuitDelay(String duration) { instanceQuitDelay = NarratorBuilder.parseDuration(duration); }
@@ -167,6 +185,18 @@ public class StoryService implements NarratorService {
         }
     }
 
+    private static class CachedStory {
+        final long version;
+        final long size;
+        final StoryBuilder builder;
+
+        CachedStory(long version, long size, StoryBuilder builder) {
+            this.version = version;
+            this.size = size;
+            this.builder = builder;
+        }
+    }
+
     public static class StoryInfo implements MassSerializable {
         public final String id;
         public final String owner;
@@ -206,19 +236,115 @@ public class StoryService implements NarratorService {
 
     private List<StoryBot> storyBots;
 
+    // Loaded stories, in access order for LRU eviction
+    private final LinkedHashMap<String, CachedStory> storyCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long storyCacheBytes = 0;
+    public final LongAdder storyCacheHits = new LongAdder();
+    public final LongAdder storyCacheMisses = new LongAdder();
+    public final LongAdder storyCacheEvictions = new LongAdder();
+    private final Object compileLock = new Object();          // stories saved before compiling are compiled once
+
+    // Instance each member is waiting in or playing, maintained by instances as players join and leave
+    private final Map<Long, StoryInstanceService> memberInstances = new ConcurrentHashMap<>();
+
     public StoryInfo findStory(String id) {
         return storyCodeLookup.get(id);
     }
 
+    StoryInstanceService findInstance(Member member) {
+        return memberInstances.get(member.getIdLong());
+    }
+
+    void joinInstance(Member member, StoryInstanceService instance) {
+        memberInstances.put(member.getIdLong(), instance);
+    }
+
+    void leaveInstance(Member member, StoryInstanceService instance) {
+        memberInstances.remove(member.getIdLong(), instance);         // might have joined another instance since
+    }
+
     public StoryBuilder loadStory(StoryInfo storyInfo) {
-        Path path = Paths.get(config.storiesPath, storyInfo.id + STORY_EXTENSION);
-        try(FileInputStream storyFile = new FileInputStream(path.toString())) {
-            Mass mass = new Mass();
-            mass.load(new Input(storyFile), STORY_EXTENSION, bot.builder.key);
-            return mass.get(0, true);
+        // Stories are not modified once loaded, so can be shared by all instances until a new version is saved
+        synchronized (storyCache) {
+            CachedStory cached = storyCache.get(storyInfo.id);
+            if(cached != null && cached.version == storyInfo.time) {
+                storyCacheHits.increment();
+                return cached.builder;
+            }
+        }
+        storyCacheMisses.increment();
+
+        Path path = Paths.get(config.storiesPath, storyInfo.id + CompiledStory.FORMAT);
+        StoryBuilder builder;
+        long size;
+        try {
+            builder = loadCompiled(storyInfo.id, CompiledStory::load).story;
+            size = Files.size(path);
         } catch (Throwable e) {
             throw new RuntimeException("Unable to load story: " + storyInfo.id, e);
         }
+
+        cacheStory(storyInfo, builder, size);
+        return builder;
+    }
+
+    /**
+     * Only reads what invites show, the story is loaded once the instance starts.
+     */
+    public StoryHeader loadStoryHeader(StoryInfo storyInfo) {
+        synchronized (storyCache) {
+            CachedStory cached = storyCache.get(storyInfo.id);
+            if(cached != null && cached.version == storyInfo.time)
+                return new StoryHeader(cached.builder);
+        }
+        try {
+            return loadCompiled(storyInfo.id, CompiledStory::loadHeader);
+        } catch (Throwable e) {
+            throw new RuntimeException("Unable to load story header: " + storyInfo.id, e);
+        }
+    }
+
+    private <T> T loadCompiled(String id, BiFunction<Path, String, T> loader) throws IOException {
+        if(!isCompiled(id))
+            compileLegacyStory(id, false);
+        Path path = Paths.get(config.storiesPath, id + CompiledStory.FORMAT);
+        try {
+            return loader.apply(path, bot.builder.key);
+        } catch (RuntimeException e) {
+            // Compiled by an older version, compile again if the legacy story was kept
+            if(!Files.exists(Paths.get(config.storiesPath, id + STORY_EXTENSION)))
+                throw e;
+            log.warn("Unable to load compiled story {}, compiling again", id, e);
+            compileLegacyStory(id, true);
+            return loader.apply(path, bot.builder.key);
+        }
+    }
+
+    private void cacheStory(StoryInfo storyInfo, StoryBuilder builder, long size) {
+        if(size > config.storyCacheMaxBytes || config.storyCacheMaxEntries <= 0)
+            return;         // not cacheable
+        synchronized (storyCache) {
+            CachedStory previous = storyCache.put(storyInfo.id, new CachedStory(storyInfo.time, size, builder));
+            if(previous != null)
+                storyCacheBytes -= previous.size;
+            storyCacheBytes += size;
+            // Evict least recently used stories until within budget
+            Iterator<CachedStory> iterator = storyCache.values().iterator();
+            while(iterator.hasNext() && (storyCache.size() > config.storyCacheMaxEntries || storyCacheBytes > config.storyCacheMaxBytes)) {
+                CachedStory evicted = iterator.next();
+                iterator.remove();
+                storyCacheBytes -= evicted.size;
+                storyCacheEvictions.increment();
+            }
+        }
+    }
+
+    private void invalidateStory(String id) {
+        synchronized (storyCache) {
+            CachedStory cached = storyCache.remove(id);
+            if(cached != null)
+                storyCacheBytes -= cached.size;
+        }
     }
 
     public StoryInfo saveStory(StoryBuilder builder, String owner, String docId) {
@@ -251,20 +377,12 @@ public class StoryService implements NarratorService {
         }
 
         // Save builder
-        Mass mass = new Mass();
-        mass.add(builder);
-
-        Path path = Paths.get(config.storiesPath, storyInfo.id + STORY_EXTENSION);
         try {
-            // Mkdirs
-            if (path.getParent() != null)
-                Files.createDirectories(path.getParent());
-            try (FileOutputStream storyFile = new FileOutputStream(path.toString(), false)) {
-                mass.save(new Output(storyFile), STORY_EXTENSION, bot.builder.key);
-            }
+            writeStory(storyInfo.id, builder);      // legacy story is kept for older builds, but is now older
         } catch (Throwable e) {
             throw new RuntimeException("Unable to save story: " + storyInfo.id, e);
         }
+        invalidateStory(storyInfo.id);
 
         // Save entry
         storyCodeLookup.put(storyInfo.id, storyInfo);
@@ -276,6 +394,56 @@ public class StoryService implements NarratorService {
         return storyInfo;
     }
 
+    /**
+     * Compiled story is used unless a legacy story was saved after it, such as by an older build.
+     */
+    private boolean isCompiled(String id) throws IOException {
+        Path path = Paths.get(config.storiesPath, id + CompiledStory.FORMAT);
+        if(!Files.exists(path))
+            return false;
+        Path legacyPath = Paths.get(config.storiesPath, id + STORY_EXTENSION);
+        return !Files.exists(legacyPath) || Files.getLastModifiedTime(legacyPath).compareTo(Files.getLastModifiedTime(path)) <= 0;
+    }
+
+    private void compileLegacyStory(String id, boolean isOutdated) throws IOException {
+        synchronized (compileLock) {
+            if(!isOutdated && isCompiled(id))
+                return;         // compiled by another instance
+            // Story saved before stories were compiled, kept so older builds can still load it
+            Path legacyPath = Paths.get(config.storiesPath, id + STORY_EXTENSION);
+            Mass mass = new Mass();
+            mass.loadMapped(legacyPath, STORY_EXTENSION, bot.builder.key);
+            StoryBuilder builder = mass.get(0, true);
+            mass.clear();       // release the mapping
+            writeStory(id, builder);
+            log.info("Compiled story {}", id);
+        }
+    }
+
+    private void writeStory(String id, StoryBuilder builder) throws IOException {
+        CompiledStory compiled = CompiledStory.compile(builder);
+
+        Path path = Paths.get(config.storiesPath, id + CompiledStory.FORMAT);
+        // Mkdirs
+        if (path.getParent() != null)
+            Files.createDirectories(path.getParent());
+        // Replace atomically, the previous version may still be mapped by instances playing it
+        Path tempPath = Files.createTempFile(path.toAbsolutePath().getParent(), id, ".tmp");
+        try {
+            try (FileOutputStream storyFile = new FileOutputStream(tempPath.toString(), false)) {
+                Output output = new Output(storyFile);
+                compiled.save(output, bot.builder.key);
+                output.flush();         // mass does not flush what is left in the buffer
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /**
+     * Bots are claimed under their own locks, logging in and reconfiguring does not block other requests.
+     */
     Optional<StoryBot> requestBot(StoryInstanceService instance, StoryBuilder.NpcBuilder state) {
         return storyBots.stream()
                 // Check if there is an existing bot already in such state
@@ -300,6 +468,22 @@ public class StoryService implements NarratorService {
                         .filter(bot -> bot.acquire(instance, state, true)));
     }
 
+    /**
+     * Starts enough offline bots concurrently, instead of one login at a time when acquiring.
+     * @return completed when all logins finished, successful or not
+     */
+    CompletableFuture<Void> prepareBots(int count) {
+        long available = storyBots.stream()
+                .filter(storyBot -> storyBot.isOnline() && storyBot.isFree())
+                .count();
+        CompletableFuture<?>[] starting = storyBots.stream()
+                .filter(storyBot -> !storyBot.isOnline())
+                .limit(Math.max(0, count - available))
+                .map(storyBot -> storyBot.warm(bot.executor))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(starting);
+    }
+
     public void setConfig(Config config) {
         this.config = config;
 
@@ -313,10 +497,21 @@ public class StoryService implements NarratorService {
                 .map(String::toLowerCase)
                 .collect(Collectors.toCollection(HashSet::new));
 
+        // Replaced bots log out once their instances release them
+        if(storyBots != null)
+            storyBots.forEach(storyBot -> storyBot.setWarm(false));
         storyBots = Arrays.stream(config.storyBots)
                 .map(botConfig -> new StoryBot(this, botConfig.token, botConfig.role))
                 .collect(Collectors.toList());
 
+        // Keep a number of bots warm, logging in all of them at the same time
+        storyBots.stream()
+                .limit(config.storyBotWarmCount)
+                .forEach(storyBot -> {
+                    storyBot.setWarm(true);
+                    storyBot.warm(bot.executor);
+                });
+
     }
 
     public StoryService(Narrator bot, Config config) {
@@ -343,11 +538,18 @@ public class StoryService implements NarratorService {
         bot.guild.getTextChannels().stream()
                 .filter(channel -> channel.getParentCategory() == storyCategory)
                 .filter(channel -> !monitoredChannels.contains(channel.getId()))
-                .forEach(channel -> bot.queue(channel::delete, log, "Delete previous session channels"));
+                .forEach(channel -> bot.queue(channel, channel::delete, log, "Delete previous session channels"));
 
         return -1;
     }
 
+    @Override
+    public boolean onServiceStop(Narrator bot) {
+        // Log out story bots, they share the narrator's pools
+        storyBots.forEach(StoryBot::shutdown);
+        return true;
+    }
+
     @Override
     public boolean processPrivateMessage(Narrator bot, MessageReceivedEvent event, ProcessedMessage message) {
         Optional<String[]> commands = parseCommands(message.raw);
@@ -386,10 +588,10 @@ public class StoryService implements NarratorService {
             String id = parameters[0].substring(GOOGLE_SHEET_URL.length()).split("/")[0];
 
             // Delete upload message to protect story source code
-            bot.queue(() -> event.getMessage().delete(), log, "Delete upload message");
+            bot.queue(event.getChannel(), () -> event.getMessage().delete(), log, "Delete upload message");
 
             // Send message to ask upload privately
-            bot.queue(() -> config.uploadPrivatelyMessage.select().build(
+            bot.queue(event.getChannel(), () -> config.uploadPrivatelyMessage.select().build(
                     bot,
                     event.getChannel(),
                     "sender", event.getMember().getAsMention()
@@ -12,12 +12,12 @@ import java.util.List;
 @SheetFields(fields = { "message", "player", "tags" })
 public class UserMessage implements OnSheetEnded {
     public String message;
-    public String player = StoryChannelBuilder.ConversationBuilder.selectedPlayer;
+    public String player = StoryChannelBuilder.selectedPlayer();
     public final List<String> tags = new ArrayList<>();
 
     public void player(String text) {
         player = text.toLowerCase();        // origin is always case-insensitive
-        StoryChannelBuilder.ConversationBuilder.selectedPlayer = player;
+        StoryChannelBuilder.selectPlayer(player);
     }
 
     public void tags(String csv) { tags.addAll(Arrays.asList(SheetParser.splitStringCSV(csv))); }
@@ -3,7 +3,11 @@ package sengine.mass;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -78,6 +82,7 @@ public class Mass {
 
     // Hints
 	public static float minCompressionRatio = 1.2f;		// 1.2f
+	public static MassCodec defaultCodec = MassCodec.DEFLATE_BEST;
 
 
 	private static final ThreadLocal<Deflater> deflaterLocal = new ThreadLocal<Deflater>() {
@@ -389,7 +394,15 @@ public class Mass {
     }
 
     public static void cryptoCipher(byte[] data, int offset, byte[] iv, int rotation, byte[] keyHash, int length) {
-        for(int maxBlocks = (length / CRYPTO_IV_SIZE) + 1, block = 0, o = 0; block < maxBlocks; block++) {
+        cryptoCipher(data, offset, iv, rotation, keyHash, 0, length);
+    }
+
+    /**
+     * Ciphers a part of a stream, position is where data[offset] is in the stream.
+     */
+    public static void cryptoCipher(byte[] data, int offset, byte[] iv, int rotation, byte[] keyHash, int position, int length) {
+        int end = position + length;
+        for(int block = position / CRYPTO_IV_SIZE, o = position; o < end; block++) {
             int keyRotation1 = ((keyHash[(block * 7) & CRYPTO_KEY_SIZE_MASK] & 0xFF) << 8) | (keyHash[(block * 47) & CRYPTO_KEY_SIZE_MASK] & 0xFF);
             int keyRotation2 = ((keyHash[(block * 107) & CRYPTO_KEY_SIZE_MASK] & 0xFF) << 8) | (keyHash[(block * 17) & CRYPTO_KEY_SIZE_MASK] & 0xFF);
 
@@ -399,8 +412,8 @@ public class Mass {
             int rotation1 = (rotation + (keyRotation1 * ivRotation1 * 443)) & CRYPTO_IV_SIZE_MASK;
             int rotation2 = (rotation + (keyRotation2 * ivRotation2 * 97)) & CRYPTO_IV_SIZE_MASK;
 
-            for(int c = 0; c < CRYPTO_IV_SIZE && o < length; c++, o++) {
-                data[offset + o] ^= iv[(rotation1 + c) & CRYPTO_IV_SIZE_MASK] ^ iv[(rotation2 - c) & CRYPTO_IV_SIZE_MASK] ^ keyHash[c & CRYPTO_KEY_SIZE_MASK];
+            for(int c = o & CRYPTO_IV_SIZE_MASK; c < CRYPTO_IV_SIZE && o < end; c++, o++) {
+                data[offset + o - position] ^= iv[(rotation1 + c) & CRYPTO_IV_SIZE_MASK] ^ iv[(rotation2 - c) & CRYPTO_IV_SIZE_MASK] ^ keyHash[c & CRYPTO_KEY_SIZE_MASK];
             }
         }
     }
@@ -424,6 +437,9 @@ public class Mass {
 	protected static final int TYPE_UNCOMPRESSED = 0;
 	protected static final int TYPE_COMPRESSED = 1;
 	protected static final int TYPE_BITSHIFT = 1;
+	protected static final int TYPE_CODEC_BITSHIFT = 28;		// codec id of compressed objects, 0 (deflate) in older files
+	protected static final int TYPE_CODEC_BITMASK = MassCodec.MAX_ID;
+	protected static final int TYPE_ID_BITMASK = (1 << TYPE_CODEC_BITSHIFT) - 1;
 
 	public static Object[] concat(Object[] to, Object ... elements) {
 		Object[] result = Arrays.copyOf(to, to.length + elements.length);
@@ -663,11 +679,18 @@ public class Mass {
 	// Data
 	private byte[] data = null;
 	private int dataSize = 0;
+	// Mapped data, objects below mappedCount are still encrypted in the file and are not in data
+	private ByteBuffer mappedData = null;
+	private byte[] mappedIv = null;
+	private byte[] mappedKeyHash = null;
+	private int mappedRotation = 0;
+	private int mappedCount = 0;
 	
 	// Buffer
 	private final Output output = new Output(64);
 	private final Input input = new Input();
 	// Compression
+	private MassCodec codec = defaultCodec;
 
 	// Serialization
 	private final IntMap<Object> idToObj = new IntMap<Object>(16, 0.8f);
@@ -696,6 +719,11 @@ public class Mass {
 		// Data
 		data = null;
 		dataSize = 0;
+		mappedData = null;
+		mappedIv = null;
+		mappedKeyHash = null;
+		mappedRotation = 0;
+		mappedCount = 0;
 		
 		// Reset buffers and compressors
 		output.clear();
@@ -719,6 +747,17 @@ public class Mass {
 		return totalSerialized;
 	}
 
+	/**
+	 * Codec used to compress objects added after this, objects already added keep their codec.
+	 */
+	public void setCodec(MassCodec codec) {
+		this.codec = codec;
+	}
+
+	public MassCodec getCodec() {
+		return codec;
+	}
+
 	protected void ensureSerializerCapacity(int numSerializers) {
 		if(classes == null) {
 			classes = new Class<?>[numSerializers];
@@ -851,7 +890,7 @@ public class Mass {
 	public int getType (int idx) {
 		if(idx >= totalSerialized || idx < 0)
 			throw new IndexOutOfBoundsException("Index out of bounds, must be >= 0 && < " + totalSerialized);
-		return types[idx] >> TYPE_BITSHIFT;
+		return (types[idx] & TYPE_ID_BITMASK) >> TYPE_BITSHIFT;
 	}
 
 	public void load(Input s, String formatName, String key) {
@@ -864,8 +903,6 @@ public class Mass {
 		else if(currentSerialized != 0)
 			throw new IllegalStateException("Cannot read as mass is not empty");
 
-		Inflater inflater = inflaterLocal.get();
-			
 		// Read format identifier
 		if(!s.readFixedString(formatName))
 			throw new MassException("Incompatible format, expected: " + formatName);
@@ -874,96 +911,12 @@ public class Mass {
             // Crypto
             // Generate key hash
             byte[] keyHash = cryptoKeyHash(key, 0, key.length);
-
-            // Read iv
             byte[] iv = new byte[CRYPTO_IV_SIZE];
-            s.readBytes(iv);
-
-            // Read writeSize meta from IV
-            int writeSize = cryptoDecodeIV(iv, keyHash);
-
-            // Read format
-            // Format size
-			boolean isCompressed = (writeSize & 0x1) != 0;		// Determine whether format data is compressed
-			writeSize = writeSize >> 1;
-			// Read format data
-			try {
-				output.writeBytes(s, writeSize);
-
-				byte[] buffer = output.getBuffer();
 
-				// Decrypt format data
-                cryptoCipher(buffer, 0, iv, 0, keyHash, writeSize);
-
-                // Decompress if needed
-				if(isCompressed) {
-					output.inflate(inflater, 0, writeSize);
-					input.setBuffer(output.getBuffer(), writeSize, output.position());
-				}
-				else
-					input.setBuffer(output.getBuffer(), 0, writeSize);
-			} finally {
-				output.clear();
-			}
+            int writeSize = loadFormat(s, iv, keyHash);
+            if(currentSerialized == 0)
+                return;
 
-			// Number of objects
-			currentSerialized = totalSerialized = input.readInt();
-			if(currentSerialized == 0)
-				return;
-			
-			ensureObjectsCapacity(currentSerialized);
-			
-			// Read types
-			for(int c = 0; c < currentSerialized; c++)
-				types[c] = input.readInt();
-			
-			// Read offsets
-			for(int c = 0; c < currentSerialized; c++)
-				offsets[c] = input.readInt();
-			
-			// Read map offsets
-			for(int c = 0; c < currentSerialized; c++)
-				mapOffsets[c] = input.readInt();
-			
-			// Read map
-			mapSize = mapOffsets[currentSerialized - 1];
-			ensureMapCapacity(mapSize);
-			for(int c = 0; c < mapSize; c++)
-				map[c] = input.readInt();
-			
-			// Read serializers
-			currentSerializersId = input.readInt();
-			ensureSerializerCapacity(currentSerializersId);
-			for(int c = 0; c < currentSerializersId; c++) {
-				int id = input.readInt();
-				String serializedTypeName = input.readString();
-				String serializerTypeName = input.readString();
-				if(getSerializer(id) != null)
-					continue;			// Serializer already loaded
-				Class<?> serializedType = parseClassName(serializedTypeName);
-				Class<?> serializerType = parseClassName(serializerTypeName);
-				Serializer<?> serializer;
-				if(serializedType == null || serializerType == null) {
-					if(serializedType == null && serializerType == null)
-						serializer = new FailedSerializer("Failed to find type: " + serializedTypeName + " and serializer: " + serializerTypeName, null);					
-					else if(serializedType == null)
-						serializer = new FailedSerializer("Failed to find type: " + serializedTypeName, null);
-					else // if(serializerType == null)
-						serializer = new FailedSerializer("Failed to find serializer: " + serializerTypeName, null);					
-				}
-				else {
-					try {
-						serializer = findSerializer(serializedType, serializerType);
-					} catch(Throwable e) {
-						serializer = new FailedSerializer("Failed to create serializer: " + serializerTypeName + " for type: " + serializedTypeName, e);
-					}
-				}
-				register(serializedType, serializer, id);
-			}
-			
-			// Read format
-			readFormatData(input);
-			
 			// Done reading format, read data
 			dataSize = offsets[currentSerialized - 1];
 			ensureDataCapacity(dataSize);
@@ -978,6 +931,186 @@ public class Mass {
 		}
 	}
 
+	public void loadMapped(Path path, String formatName, String key) {
+		loadMapped(path, formatName, useGlobalKey(key).getBytes(charset));
+	}
+
+	/**
+	 * Maps the file instead of reading it, only the format is read now. Each object is read and decrypted from the file
+	 * into a buffer of its own size whenever it is decoded, data of the whole file is only read if saved again.
+	 * The mapping is released once this mass is cleared and collected.
+	 */
+	public void loadMapped(Path path, String formatName, byte[] key) {
+		if(currentSerialized != totalSerialized)
+			throw new IllegalStateException("Cannot read while serializing");
+		else if(currentSerialized != 0)
+			throw new IllegalStateException("Cannot read as mass is not empty");
+
+		ByteBuffer file;
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());		// mapping stays valid after closing
+		} catch(Throwable e) {
+			throw new MassException("Failed to map " + path, e);
+		}
+
+		// Read format identifier and iv
+		byte[] formatNameBytes = formatName == null ? new byte[0] : formatName.getBytes(charset);
+		byte[] header = new byte[formatNameBytes.length + CRYPTO_IV_SIZE];
+		if(file.remaining() < header.length)
+			throw new MassException("Incompatible format, expected: " + formatName);
+		file.get(header);
+		if(!new Input(header).readFixedString(formatName))
+			throw new MassException("Incompatible format, expected: " + formatName);
+
+		try {
+            byte[] keyHash = cryptoKeyHash(key, 0, key.length);
+            byte[] iv = new byte[CRYPTO_IV_SIZE];
+
+			// Format data follows iv
+			int formatSize = cryptoDecodeIV(Arrays.copyOfRange(header, formatNameBytes.length, header.length), keyHash) >> 1;
+			if(formatSize < 0 || file.remaining() < formatSize)
+				throw new MassException("Format data exceeds file size: " + formatSize);
+			header = Arrays.copyOf(header, header.length + formatSize);
+			file.get(header, header.length - formatSize, formatSize);
+			Input s = new Input(header);
+			s.setPosition(formatNameBytes.length);
+
+			int writeSize = loadFormat(s, iv, keyHash);
+			if(currentSerialized == 0)
+				return;
+
+			// Done reading format, data is the rest of the file
+			dataSize = offsets[currentSerialized - 1];
+			if(file.remaining() < dataSize)
+				throw new MassException("Expected " + dataSize + " bytes of data, file has " + file.remaining());
+			mappedData = file.slice();
+			mappedIv = iv;
+			mappedKeyHash = keyHash;
+			mappedRotation = writeSize;
+			mappedCount = currentSerialized;
+		} catch(Throwable e) {
+			clear();
+			throw new MassException("Failed to read mass", e);
+		}
+	}
+
+	private byte[] readMappedObject(int start, int length) {
+		byte[] buffer = new byte[length];
+		mappedData.position(start);
+		mappedData.get(buffer, 0, length);
+		cryptoCipher(buffer, 0, mappedIv, mappedRotation, mappedKeyHash, start, length);
+		return buffer;
+	}
+
+	private void loadMappedObjects() {
+		if(mappedData == null)
+			return;
+		int mappedSize = offsets[mappedCount - 1];
+		ensureDataCapacity(mappedSize);
+		mappedData.position(0);
+		mappedData.get(data, 0, mappedSize);
+		cryptoCipher(data, 0, mappedIv, mappedRotation, mappedKeyHash, 0, mappedSize);
+		// All data is in memory now
+		mappedData = null;
+		mappedIv = null;
+		mappedKeyHash = null;
+		mappedCount = 0;
+	}
+
+	private int loadFormat(Input s, byte[] iv, byte[] keyHash) {
+		Inflater inflater = inflaterLocal.get();
+
+        // Read iv
+        s.readBytes(iv);
+
+        // Read writeSize meta from IV
+        int writeSize = cryptoDecodeIV(iv, keyHash);
+
+        // Read format
+        // Format size
+		boolean isCompressed = (writeSize & 0x1) != 0;		// Determine whether format data is compressed
+		writeSize = writeSize >> 1;
+		// Read format data
+		try {
+			output.writeBytes(s, writeSize);
+
+			byte[] buffer = output.getBuffer();
+
+			// Decrypt format data
+            cryptoCipher(buffer, 0, iv, 0, keyHash, writeSize);
+
+            // Decompress if needed
+			if(isCompressed) {
+				output.inflate(inflater, 0, writeSize);
+				input.setBuffer(output.getBuffer(), writeSize, output.position());
+			}
+			else
+				input.setBuffer(output.getBuffer(), 0, writeSize);
+		} finally {
+			output.clear();
+		}
+
+		// Number of objects
+		currentSerialized = totalSerialized = input.readInt();
+		if(currentSerialized == 0)
+			return writeSize;
+		
+		ensureObjectsCapacity(currentSerialized);
+		
+		// Read types
+		for(int c = 0; c < currentSerialized; c++)
+			types[c] = input.readInt();
+		
+		// Read offsets
+		for(int c = 0; c < currentSerialized; c++)
+			offsets[c] = input.readInt();
+		
+		// Read map offsets
+		for(int c = 0; c < currentSerialized; c++)
+			mapOffsets[c] = input.readInt();
+		
+		// Read map
+		mapSize = mapOffsets[currentSerialized - 1];
+		ensureMapCapacity(mapSize);
+		for(int c = 0; c < mapSize; c++)
+			map[c] = input.readInt();
+		
+		// Read serializers
+		currentSerializersId = input.readInt();
+		ensureSerializerCapacity(currentSerializersId);
+		for(int c = 0; c < currentSerializersId; c++) {
+			int id = input.readInt();
+			String serializedTypeName = input.readString();
+			String serializerTypeName = input.readString();
+			if(getSerializer(id) != null)
+				continue;			// Serializer already loaded
+			Class<?> serializedType = parseClassName(serializedTypeName);
+			Class<?> serializerType = parseClassName(serializerTypeName);
+			Serializer<?> serializer;
+			if(serializedType == null || serializerType == null) {
+				if(serializedType == null && serializerType == null)
+					serializer = new FailedSerializer("Failed to find type: " + serializedTypeName + " and serializer: " + serializerTypeName, null);					
+				else if(serializedType == null)
+					serializer = new FailedSerializer("Failed to find type: " + serializedTypeName, null);
+				else // if(serializerType == null)
+					serializer = new FailedSerializer("Failed to find serializer: " + serializerTypeName, null);					
+			}
+			else {
+				try {
+					serializer = findSerializer(serializedType, serializerType);
+				} catch(Throwable e) {
+					serializer = new FailedSerializer("Failed to create serializer: " + serializerTypeName + " for type: " + serializedTypeName, e);
+				}
+			}
+			register(serializedType, serializer, id);
+		}
+		
+		// Read format
+		readFormatData(input);
+		
+		return writeSize;
+	}
+
 	public void reference (Object object) {
 		// Update the latest object with this object
 		if(deserializingIdx < 0)
@@ -1122,7 +1255,7 @@ public class Mass {
 			throw new IllegalStateException("Cannot get while serializing");
 		// Determine type, serializer and compression
 		boolean isCompressed = (types[idx] & TYPE_COMPRESSED) != 0;
-		int typeId = types[idx] >> TYPE_BITSHIFT;
+		int typeId = (types[idx] & TYPE_ID_BITMASK) >> TYPE_BITSHIFT;
 		Class<?> type = getSerializedClass(typeId);
 		Serializer serializer = getSerializer(typeId);
 		if(serializer == null)
@@ -1166,19 +1299,24 @@ public class Mass {
 		int currentDeserializingIdx = deserializingIdx;
 		deserializingIdx = idx;
 
-		Inflater inflater = inflaterLocal.get();
-
 		try {
 			// Determine data region
+			byte[] objectData = data;
 			int dataOffsetStart = idx == 0 ? 0 : offsets[idx - 1];
 			int dataOffsetEnd = offsets[idx];
+			if(idx < mappedCount) {
+				// Still in the mapped file
+				objectData = readMappedObject(dataOffsetStart, dataOffsetEnd - dataOffsetStart);
+				dataOffsetEnd -= dataOffsetStart;
+				dataOffsetStart = 0;
+			}
 			if(isCompressed) {
 				// Decompress data
-				output.inflate(inflater, data, dataOffsetStart, dataOffsetEnd - dataOffsetStart);
+				MassCodec.forId((types[idx] >> TYPE_CODEC_BITSHIFT) & TYPE_CODEC_BITMASK).decompress(output, objectData, dataOffsetStart, dataOffsetEnd - dataOffsetStart);
 				input.setBuffer(output.getBuffer(), outputLimit, output.position());
 			}
 			else
-				input.setBuffer(data, dataOffsetStart, dataOffsetEnd);
+				input.setBuffer(objectData, dataOffsetStart, dataOffsetEnd);
 			// Set map region
 			mapOffset = idx == 0 ? 0 : mapOffsets[idx - 1];
 			mapLimit = mapOffsets[idx];
@@ -1216,6 +1354,8 @@ public class Mass {
 		else if(deserializingIdx != IDX_NOT_DESERIALIZING)
 			throw new IllegalStateException("Cannot save while deserialization is in progress");
 
+		// Data of mapped objects not read yet is needed
+		loadMappedObjects();
 
 		// Format name
 		s.writeFixedString(formatName);
@@ -1380,8 +1520,6 @@ public class Mass {
 		// Else serializing parent object, start
 		int prevSerialized = currentSerialized;
 
-		Deflater deflater = deflaterLocal.get();
-
 		try {
 			while(currentSerialized < totalSerialized) {
 				Object child = idToObj.get(currentSerialized);
@@ -1392,7 +1530,7 @@ public class Mass {
 					// Serialize
 					serializer.write(this, output, child);
 					int uncompressedSize = output.position();
-					output.deflate(deflater, 0, uncompressedSize);
+					codec.compress(output, output.getBuffer(), 0, uncompressedSize);
 					int compressedSize = output.position() - uncompressedSize;
 					// Check compression ratio
 					float compressionRatio = (float)uncompressedSize / (float)compressedSize;
@@ -1410,8 +1548,10 @@ public class Mass {
 					}
 					// Update type
 					int typeId = getSerializedClassId(objectType) << 1;
+					if(typeId > TYPE_ID_BITMASK)
+						throw new MassException("Too many serialized types: " + getSerializedClassId(objectType));
 					if(isCompressed)
-						typeId |= 0x1;		// mark compression
+						typeId |= 0x1 | (codec.id << TYPE_CODEC_BITSHIFT);		// mark compression
 					types[currentSerialized] = typeId;
 					// Update offsets
 					offsets[currentSerialized] = dataSize;
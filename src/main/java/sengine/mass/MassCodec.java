@@ -0,0 +1,257 @@
+package sengine.mass;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import sengine.mass.io.Output;
+
+/**
+ * Compression of serialized objects. The id of the codec used is saved with each object,
+ * so objects compressed with different codecs can be loaded from the same file.
+ */
+public abstract class MassCodec {
+
+	public static final int ID_DEFLATE = 0;		// files saved before codecs were introduced are all deflate
+	public static final int ID_LZ = 1;
+	public static final int MAX_ID = 7;
+
+	public static final MassCodec DEFLATE_BEST = new DeflateCodec(Deflater.BEST_COMPRESSION);
+	public static final MassCodec DEFLATE_DEFAULT = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+	public static final MassCodec DEFLATE_FAST = new DeflateCodec(Deflater.BEST_SPEED);
+	public static final MassCodec LZ = new LZCodec();
+
+	private static final MassCodec[] decoders = new MassCodec[MAX_ID + 1];
+	static {
+		decoders[ID_DEFLATE] = DEFLATE_BEST;		// level does not matter for decompression
+		decoders[ID_LZ] = LZ;
+	}
+
+	public static MassCodec forId(int id) {
+		MassCodec codec = id >= 0 && id <= MAX_ID ? decoders[id] : null;
+		if(codec == null)
+			throw new MassException("Unknown codec: " + id);
+		return codec;
+	}
+
+	public final int id;
+
+	protected MassCodec(int id) {
+		if(id < 0 || id > MAX_ID)
+			throw new IllegalArgumentException("Codec id must be between 0 and " + MAX_ID);
+		this.id = id;
+	}
+
+	/**
+	 * Appends compressed bytes to output.
+	 */
+	public abstract void compress(Output output, byte[] uncompressed, int offset, int count);
+
+	/**
+	 * Appends decompressed bytes to output.
+	 */
+	public abstract void decompress(Output output, byte[] compressed, int offset, int count);
+
+
+	public static class DeflateCodec extends MassCodec {
+		private final ThreadLocal<Deflater> deflaterLocal;
+
+		private static final ThreadLocal<Inflater> inflaterLocal = new ThreadLocal<Inflater>() {
+			@Override
+			protected Inflater initialValue() {
+				return new Inflater();
+			}
+		};
+
+		public DeflateCodec(final int level) {
+			super(ID_DEFLATE);
+			deflaterLocal = new ThreadLocal<Deflater>() {
+				@Override
+				protected Deflater initialValue() {
+					return new Deflater(level);
+				}
+			};
+		}
+
+		@Override
+		public void compress(Output output, byte[] uncompressed, int offset, int count) {
+			output.deflate(deflaterLocal.get(), uncompressed, offset, count);
+		}
+
+		@Override
+		public void decompress(Output output, byte[] compressed, int offset, int count) {
+			output.inflate(inflaterLocal.get(), compressed, offset, count);
+		}
+	}
+
+
+	/**
+	 * Fast LZ77 compression using the LZ4 block format, prefixed with the uncompressed size.
+	 */
+	public static class LZCodec extends MassCodec {
+		private static final int MIN_MATCH = 4;
+		private static final int LAST_LITERALS = 5;			// block must end with literals
+		private static final int MATCH_FIND_LIMIT = 12;		// last match must start before this
+		private static final int MAX_DISTANCE = 0xFFFF;
+		private static final int HASH_LOG = 12;
+
+		private static final ThreadLocal<int[]> tableLocal = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue() {
+				return new int[1 << HASH_LOG];
+			}
+		};
+
+		LZCodec() {
+			super(ID_LZ);
+		}
+
+		private static int readInt(byte[] b, int i) {
+			return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | ((b[i + 3] & 0xFF) << 24);
+		}
+
+		private static int hash(int sequence) {
+			return (sequence * -1640531535) >>> (32 - HASH_LOG);
+		}
+
+		private static int writeLength(byte[] dst, int dp, int length) {
+			while(length >= 0xFF) {
+				dst[dp++] = (byte) 0xFF;
+				length -= 0xFF;
+			}
+			dst[dp++] = (byte) length;
+			return dp;
+		}
+
+		private static int writeLiterals(byte[] dst, int dp, int token, byte[] src, int anchor, int literals) {
+			if(literals >= 0xF) {
+				dst[dp++] = (byte) (0xF0 | token);
+				dp = writeLength(dst, dp, literals - 0xF);
+			}
+			else
+				dst[dp++] = (byte) ((literals << 4) | token);
+			System.arraycopy(src, anchor, dst, dp, literals);
+			return dp + literals;
+		}
+
+		@Override
+		public void compress(Output output, byte[] src, int offset, int count) {
+			// Worst case is all literals
+			output.require(4 + count + (count / 0xFF) + 16);
+			byte[] dst = output.getBuffer();
+			int dp = output.position();
+
+			// Uncompressed size
+			dst[dp++] = (byte) (count >>> 24);
+			dst[dp++] = (byte) (count >>> 16);
+			dst[dp++] = (byte) (count >>> 8);
+			dst[dp++] = (byte) count;
+
+			int end = offset + count;
+			int anchor = offset;
+			if(count >= MATCH_FIND_LIMIT) {
+				int[] table = tableLocal.get();
+				Arrays.fill(table, -1);
+				int matchLimit = end - LAST_LITERALS;
+				int findLimit = end - MATCH_FIND_LIMIT;
+				int ip = offset;
+				while(ip < findLimit) {
+					int sequence = readInt(src, ip);
+					int h = hash(sequence);
+					int ref = table[h];
+					table[h] = ip;
+					if(ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+						ip++;
+						continue;
+					}
+					// Extend match backwards into pending literals
+					while(ip > anchor && ref > offset && src[ip - 1] == src[ref - 1]) {
+						ip--;
+						ref--;
+					}
+					// Extend match forward
+					int matchLength = MIN_MATCH;
+					while(ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength])
+						matchLength++;
+					// Literals, offset and match length
+					int extra = matchLength - MIN_MATCH;
+					dp = writeLiterals(dst, dp, Math.min(extra, 0xF), src, anchor, ip - anchor);
+					int distance = ip - ref;
+					dst[dp++] = (byte) distance;
+					dst[dp++] = (byte) (distance >>> 8);
+					if(extra >= 0xF)
+						dp = writeLength(dst, dp, extra - 0xF);
+					ip += matchLength;
+					anchor = ip;
+				}
+			}
+			// Last literals
+			dp = writeLiterals(dst, dp, 0, src, anchor, end - anchor);
+			output.setPosition(dp);
+		}
+
+		@Override
+		public void decompress(Output output, byte[] src, int offset, int count) {
+			int ip = offset;
+			int end = offset + count;
+			if(count < 5)
+				throw new MassException("Invalid compressed size: " + count);
+			int size = ((src[ip] & 0xFF) << 24) | ((src[ip + 1] & 0xFF) << 16) | ((src[ip + 2] & 0xFF) << 8) | (src[ip + 3] & 0xFF);
+			ip += 4;
+			output.require(size);
+			byte[] dst = output.getBuffer();
+			int start = output.position();
+			int dp = start;
+			int limit = start + size;
+			try {
+				while(true) {
+					int token = src[ip++] & 0xFF;
+					// Literals
+					int literals = token >>> 4;
+					if(literals == 0xF) {
+						int b;
+						do {
+							b = src[ip++] & 0xFF;
+							literals += b;
+						} while(b == 0xFF);
+					}
+					if(dp + literals > limit || ip + literals > end)
+						throw new MassException("Literals exceed block");
+					System.arraycopy(src, ip, dst, dp, literals);
+					ip += literals;
+					dp += literals;
+					if(ip == end)
+						break;		// last literals
+					// Match
+					int distance = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+					ip += 2;
+					int matchLength = token & 0xF;
+					if(matchLength == 0xF) {
+						int b;
+						do {
+							b = src[ip++] & 0xFF;
+							matchLength += b;
+						} while(b == 0xFF);
+					}
+					matchLength += MIN_MATCH;
+					int ref = dp - distance;
+					if(distance == 0 || ref < start || dp + matchLength > limit)
+						throw new MassException("Invalid match at " + (dp - start));
+					if(distance >= matchLength)
+						System.arraycopy(dst, ref, dst, dp, matchLength);
+					else {
+						// Overlapping, repeats the last distance bytes
+						for(int c = 0; c < matchLength; c++)
+							dst[dp + c] = dst[ref + c];
+					}
+					dp += matchLength;
+				}
+			} catch(ArrayIndexOutOfBoundsException e) {
+				throw new MassException("Truncated compressed block", e);
+			}
+			if(dp != limit)
+				throw new MassException("Decompressed " + (dp - start) + " bytes, expected " + size);
+			output.setPosition(dp);
+		}
+	}
+}
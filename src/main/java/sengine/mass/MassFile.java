@@ -15,6 +15,8 @@ import sengine.utils.WeakCache;
 public class MassFile extends Mass {
 	public static final String FORMAT = "FS2";
 	
+	private static final int REMOVED = -1;
+	
 	public void load(Input s, String key) {
 		load(s, FORMAT, key);
 	}
@@ -24,6 +26,35 @@ public class MassFile extends Mass {
 		save(s, FORMAT, key);
 	}
 	
+	/**
+	 * Saves only the specified entries as a standalone record, entries that do not exist are recorded as removed.
+	 */
+	public void saveEntries(Output s, String key, Iterable<String> entries) {
+		MassFile record = new MassFile();
+		record.setCodec(getCodec());
+		for(String name : entries) {
+			if(names.containsKey(name))
+				record.add(name, get(name));
+			else
+				record.names.put(name, REMOVED);
+		}
+		record.save(s, key);
+	}
+	
+	/**
+	 * Applies a record saved with {@link #saveEntries(Output, String, Iterable)} on top of this file.
+	 */
+	public void loadEntries(Input s, String key) {
+		MassFile record = new MassFile();
+		record.load(s, key);
+		for(ObjectIntMap.Entry<String> e : record.names.entries()) {
+			if(e.value == REMOVED)
+				remove(e.key);
+			else
+				add(e.key, record.get(e.key));
+		}
+	}
+	
 	
 	// Caches
 	final WeakCache<Integer, Object> deserializedCache = new WeakCache<Integer, Object>();
@@ -1,6 +1,9 @@
 
 package sengine.mass.serializers;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.security.AccessControlException;
@@ -35,6 +38,16 @@ public class FieldSerializer<T> implements Serializer<T> {
 			public void read(Mass m, Input input, Field field, Object object) throws IllegalArgumentException, IllegalAccessException {
 				field.setBoolean(object, input.readBoolean());
 			}
+
+			@Override
+			public void write(Mass m, Output output, MethodHandle getter, Object object) throws Throwable {
+				output.writeBoolean((boolean) getter.invokeExact(object));
+			}
+
+			@Override
+			public void read(Mass m, Input input, MethodHandle setter, Object object) throws Throwable {
+				setter.invokeExact(object, input.readBoolean());
+			}
 		},
 		BYTE(byte.class, Byte.class) {
 			@Override
@@ -46,6 +59,16 @@ public class FieldSerializer<T> implements Serializer<T> {
 			public void read(Mass m, Input input, Field field, Object object) throws IllegalArgumentException, IllegalAccessException {
 				field.setByte(object, input.readByte());
 			}
+
+			@Override
+			public void write(Mass m, Output output, MethodHandle getter, Object object) throws Throwable {
+				output.writeByte((byte) getter.invokeExact(object));
+			}
+
+			@Override
+			public void read(Mass m, Input input, MethodHandle setter, Object object) throws Throwable {
+				setter.invokeExact(object, input.readByte());
+			}
 		},
 		CHAR(char.class, Character.class) {
 			@Override
@@ -57,6 +80,16 @@ public class FieldSerializer<T> implements Serializer<T> {
 			public void read(Mass m, Input input, Field field, Object object) throws IllegalArgumentException, IllegalAccessException {
 				field.setChar(object, input.readChar());
 			}
+
+			@Override
+			public void write(Mass m, Output output, MethodHandle getter, Object object) throws Throwable {
+				output.writeChar((char) getter.invokeExact(object));
+			}
+
+			@Override
+			public void read(Mass m, Input input, MethodHandle setter, Object object) throws Throwable {
+				setter.invokeExact(object, input.readChar());
+			}
 		},
 		SHORT(short.class, Short.class) {
 			@Override
@@ -68,6 +101,16 @@ public class FieldSerializer<T> implements Serializer<T> {
 			public void read(Mass m, Input input, Field field, Object object) throws IllegalArgumentException, IllegalAccessException {
 				field.setShort(object, input.readShort());
 			}
+
+			@Override
+			public void write(Mass m, Output output, MethodHandle getter, Object object) throws Throwable {
+				output.writeShort((short) getter.invokeExact(object));
+			}
+
+			@Override
+			public void read(Mass m, Input input, MethodHandle setter, Object object) throws Throwable {
+				setter.invokeExact(object, input.readShort());
+			}
 		},
 		INT(int.class, Integer.class) {
 			@Override
@@ -79,6 +122,16 @@ public class FieldSerializer<T> implements Serializer<T> {
 			public void read(Mass m, Input input, Field field, Object object) throws IllegalArgumentException, IllegalAccessException {
 				field.setInt(object, input.readInt());
 			}
+
+			@Override
+			public void write(Mass m, Output output, MethodHandle getter, Object object) throws Throwable {
+				output.writeInt((int) getter.invokeExact(object));
+			}
+
+			@Override
+			public void read(Mass m, Input input, MethodHandle setter, Object object) throws Throwable {
+				setter.invokeExact(object, input.readInt());
+			}
 		},
 		LONG(long.class, Long.class) {
 			@Override
@@ -90,6 +143,16 @@ public class FieldSerializer<T> implements Serializer<T> {
 			public void read(Mass m, Input input, Field field, Object object) throws IllegalArgumentException, IllegalAccessException {
 				field.setLong(object, input.readLong());
 			}
+
+			@Override
+			public void write(Mass m, Output output, MethodHandle getter, Object object) throws Throwable {
+				output.writeLong((long) getter.invokeExact(object));
+			}
+
+			@Override
+			public void read(Mass m, Input input, MethodHandle setter, Object object) throws Throwable {
+				setter.invokeExact(object, input.readLong());
+			}
 		},
 		FLOAT(float.class, Float.class) {
 			@Override
@@ -101,6 +164,16 @@ public class FieldSerializer<T> implements Serializer<T> {
 			public void read(Mass m, Input input, Field field, Object object) throws IllegalArgumentException, IllegalAccessException {
 				field.setFloat(object, input.readFloat());
 			}
+
+			@Override
+			public void write(Mass m, Output output, MethodHandle getter, Object object) throws Throwable {
+				output.writeFloat((float) getter.invokeExact(object));
+			}
+
+			@Override
+			public void read(Mass m, Input input, MethodHandle setter, Object object) throws Throwable {
+				setter.invokeExact(object, input.readFloat());
+			}
 		},
 		DOUBLE(double.class, Double.class) {
 			@Override
@@ -112,6 +185,16 @@ public class FieldSerializer<T> implements Serializer<T> {
 			public void read(Mass m, Input input, Field field, Object object) throws IllegalArgumentException, IllegalAccessException {
 				field.setDouble(object, input.readDouble());
 			}
+
+			@Override
+			public void write(Mass m, Output output, MethodHandle getter, Object object) throws Throwable {
+				output.writeDouble((double) getter.invokeExact(object));
+			}
+
+			@Override
+			public void read(Mass m, Input input, MethodHandle setter, Object object) throws Throwable {
+				setter.invokeExact(object, input.readDouble());
+			}
 		},
 		OBJECT(Object.class, Object.class) {
 			@Override
@@ -123,6 +206,16 @@ public class FieldSerializer<T> implements Serializer<T> {
 			public void read(Mass m, Input input, Field field, Object object) throws IllegalArgumentException, IllegalAccessException {
 				field.set(object, m.read());
 			}
+
+			@Override
+			public void write(Mass m, Output output, MethodHandle getter, Object object) throws Throwable {
+				m.write((Object) getter.invokeExact(object));
+			}
+
+			@Override
+			public void read(Mass m, Input input, MethodHandle setter, Object object) throws Throwable {
+				setter.invokeExact(object, (Object) m.read());
+			}
 		}
 		;
 		
@@ -136,6 +229,8 @@ public class FieldSerializer<T> implements Serializer<T> {
 		
 		public abstract void write(Mass m, Output output, Field field, Object object) throws IllegalArgumentException, IllegalAccessException;
 		public abstract void read(Mass m, Input input, Field field, Object object) throws IllegalArgumentException, IllegalAccessException;
+		public abstract void write(Mass m, Output output, MethodHandle getter, Object object) throws Throwable;
+		public abstract void read(Mass m, Input input, MethodHandle setter, Object object) throws Throwable;
 		
 		public static Primitive findPrimitive(Class<?> type) {
 			Primitive[] primitives = Primitive.values();
@@ -150,11 +245,16 @@ public class FieldSerializer<T> implements Serializer<T> {
 	
 	public final Field[] fields;
 	public final Primitive[] primitives;
+	// Handles adapted to the exact primitive type, null if the field is accessed by reflection
+	public final MethodHandle[] getters;
+	public final MethodHandle[] setters;
 	
 	public FieldSerializer(Class<T> type) {
 		if (type.isInterface()) {
 			fields = new Field[0]; // No fields to serialize.		// TODO: what is this?
 			primitives = new Primitive[0];
+			getters = new MethodHandle[0];
+			setters = new MethodHandle[0];
 			return;
 		}
 		
@@ -205,6 +305,24 @@ public class FieldSerializer<T> implements Serializer<T> {
 		this.primitives = new Primitive[fields.length];
 		for(int c = 0; c < fields.length; c++)
 			primitives[c] = Primitive.findPrimitive(fields[c].getType());
+
+		// Create handles once, wrapper typed fields are left to reflection which treats them differently
+		this.getters = new MethodHandle[fields.length];
+		this.setters = new MethodHandle[fields.length];
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		for(int c = 0; c < fields.length; c++) {
+			Field field = fields[c];
+			if(!field.getType().isPrimitive() && primitives[c] != Primitive.OBJECT)
+				continue;
+			Class<?> accessType = primitives[c] == Primitive.OBJECT ? Object.class : field.getType();
+			try {
+				getters[c] = lookup.unreflectGetter(field).asType(MethodType.methodType(accessType, Object.class));
+				setters[c] = lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, accessType));
+			} catch (IllegalAccessException e) {
+				getters[c] = null;
+				setters[c] = null;
+			}
+		}
 	}
 
 	public void copy(HashMap<String, Object> from, T to) {
@@ -225,10 +343,13 @@ public class FieldSerializer<T> implements Serializer<T> {
 	@Override
 	public void write(Mass m, Output output, T object) {
 		for(int c = 0; c < fields.length; c++) {
-			Field field = fields[c];
 			Primitive primitive = primitives[c];
+			MethodHandle getter = getters[c];
 			try {
-				primitive.write(m, output, field, object);
+				if(getter != null)
+					primitive.write(m, output, getter, object);
+				else
+					primitive.write(m, output, fields[c], object);
 			} catch (Throwable e) {
 				throw new MassException("Failed to write field-" + c + " [" + primitive + "] for object: " + object);
 			}
@@ -239,10 +360,13 @@ public class FieldSerializer<T> implements Serializer<T> {
 	public T read(Mass m, Input input, Class<T> type) {
 		T object = Mass.newInstance(type);
 		for(int c = 0; c < fields.length; c++) {
-			Field field = fields[c];
 			Primitive primitive = primitives[c];
+			MethodHandle setter = setters[c];
 			try {
-				primitive.read(m, input, field, object);
+				if(setter != null)
+					primitive.read(m, input, setter, object);
+				else
+					primitive.read(m, input, fields[c], object);
 			} catch (Throwable e) {
 				throw new MassException("Failed to read field-" + c + " [" + primitive + "] for object: " + object, e);
 			}
@@ -1,5 +1,8 @@
 package sengine.mass.serializers;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import sengine.mass.Mass;
 import sengine.mass.MassException;
@@ -144,15 +147,15 @@ public class MassSerializableSerializer implements Serializer<MassSerializable>
 	@Override
 	public MassSerializable read(Mass m, Input s, Class<MassSerializable> type) {
 		// Determine constructor
-		Constructor<?> constructor;
+		MethodHandle constructor;
 		Primitive[] constructorPrimitives;
 		if(constructors.length > 1) {
 			int index = s.readByteUnsigned();
-			constructor = constructors[index];
+			constructor = instantiators[index];
 			constructorPrimitives = primitives[index];
 		}
 		else {
-			constructor = constructors[0];
+			constructor = instantiators[0];
 			constructorPrimitives = primitives[0];
 		}
 		// Read arguments
@@ -161,7 +164,7 @@ public class MassSerializableSerializer implements Serializer<MassSerializable>
 			arguments[c] = constructorPrimitives[c].read(m, s);
 		// Instantiate
 		try {
-			return (MassSerializable) constructor.newInstance(arguments);
+			return (MassSerializable) constructor.invokeExact(arguments);
 		} catch(Throwable e) {
 			String argumentsString = "";
 			for(int c = 0; c < arguments.length; c++)
@@ -200,10 +203,12 @@ public class MassSerializableSerializer implements Serializer<MassSerializable>
 	
 	public final Constructor<?>[] constructors;
 	public final Primitive[][] primitives;
+	private final MethodHandle[] instantiators;		// constructors taking an Object[] of arguments
 	
 	public MassSerializableSerializer() {
 		constructors = null;
 		primitives = null;
+		instantiators = null;
 	}
 	
 	public MassSerializableSerializer(Class<?> type) {
@@ -249,5 +254,17 @@ public class MassSerializableSerializer implements Serializer<MassSerializable>
 				constructorPrimitives[p] = Primitive.findPrimitive(parameters[p]);
 			primitives[c] = constructorPrimitives;
 		}
+		// Create handles once
+		instantiators = new MethodHandle[numConstructors];
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		for(int c = 0; c < numConstructors; c++) {
+			try {
+				instantiators[c] = lookup.unreflectConstructor(constructors[c])
+						.asSpreader(Object[].class, primitives[c].length)
+						.asType(MethodType.methodType(MassSerializable.class, Object[].class));
+			} catch (IllegalAccessException e) {
+				throw new MassException("Cannot access MassConstructor of type: " + type, e);
+			}
+		}
 	}
 }
@@ -2,10 +2,15 @@ package sengine.sheets;
 
 import com.badlogic.gdx.utils.Array;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
@@ -25,6 +30,13 @@ class Serializer<T> {
     public final Primitive[] fieldPrimitives;
     public final Method[] fieldMethods;
 
+    // Dispatch, resolved once per class
+    private final MethodHandle[] methodHandles;             // (Object, Object[])void, null if only accessible by reflection
+    private final MethodHandle[] fieldMethodHandles;        // (Object, Object)void
+    private final int[] methodFields;                       // field of each field method, -1 for other methods
+    private final HashMap<String, Integer> methodLookup = new HashMap<>();     // soft names, first match wins
+    private final HashMap<String, Integer> fieldLookup = new HashMap<>();
+
     public Serializer(Class<T> type) {
         // Check if compatible constructor exist
 //            try {                 // 20181117: removed as its possible to get an instantiated object supplied for parse()
@@ -51,6 +63,7 @@ class Serializer<T> {
             methods[c] = method;
             methodNames[c] = method.getName();
             methodParameterTypes[c] = method.getParameterTypes();
+            methodLookup.putIfAbsent(softName(methodNames[c]), c);
         }
 
         // Collect all fields
@@ -104,22 +117,81 @@ class Serializer<T> {
                 fieldRequired[c] = requiredNames.contains(fieldName);
             }
         }
-    }
 
-    public int findField(String name) {
+        for(int c = 0; c < fieldNames.length; c++)
+            fieldLookup.putIfAbsent(softName(fieldNames[c]), c);
+
+        // Bind handles
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        methodHandles = new MethodHandle[methods.length];
+        methodFields = new int[methods.length];
+        Arrays.fill(methodFields, -1);
+        for(int c = 0; c < methods.length; c++) {
+            Method method = methods[c];
+            try {
+                MethodHandle handle = lookup.unreflect(method);
+                if(Modifier.isStatic(method.getModifiers()))
+                    handle = MethodHandles.dropArguments(handle, 0, Object.class);
+                methodHandles[c] = handle.asSpreader(Object[].class, methodParameterTypes[c].length)
+                        .asType(MethodType.methodType(void.class, Object.class, Object[].class));
+            } catch (IllegalAccessException e) {
+                methodHandles[c] = null;            // public method of a class that is not accessible, use reflection
+            }
+        }
+        fieldMethodHandles = new MethodHandle[fieldNames.length];
         for(int c = 0; c < fieldNames.length; c++) {
-            if(SheetParser.softStringEquals(fieldNames[c], name))
-                return c;
+            if(fieldMethods[c] == null)
+                continue;
+            int index = findMethod(fieldNames[c]);
+            if(methodFields[index] == -1)
+                methodFields[index] = c;
+            if(methodHandles[index] != null)
+                fieldMethodHandles[c] = methodHandles[index].asCollector(Object[].class, 1);
         }
-        return -1;
     }
 
-    public int findMethod(String name) {
-        for(int c = 0; c < methodNames.length; c++) {
-            if(SheetParser.softStringEquals(methodNames[c], name))
-                return c;
+    static String softName(String name) {
+        // Same as SheetParser.softStringEquals()
+        StringBuilder sb = new StringBuilder(name.length());
+        for(int c = 0; c < name.length(); c++) {
+            char ch = name.charAt(c);
+            if(!Character.isWhitespace(ch) && ch != '_')
+                sb.append(Character.toLowerCase(ch));
         }
-        return -1;
+        return sb.toString();
+    }
+
+    /**
+     * @return field index if the method is a field method, else -1
+     */
+    public int fieldOfMethod(int index) {
+        return methodFields[index];
+    }
+
+    public void invokeMethod(int index, Object object, Object[] parameters) throws Throwable {
+        MethodHandle handle = methodHandles[index];
+        if(handle != null)
+            handle.invokeExact(object, parameters);
+        else
+            methods[index].invoke(object, parameters);
+    }
+
+    public void invokeFieldMethod(int fieldIndex, Object object, Object parameter) throws Throwable {
+        MethodHandle handle = fieldMethodHandles[fieldIndex];
+        if(handle != null)
+            handle.invokeExact(object, parameter);
+        else
+            fieldMethods[fieldIndex].invoke(object, parameter);
+    }
+
+    public int findField(String name) {
+        Integer index = fieldLookup.get(softName(name));
+        return index != null ? index : -1;
+    }
+
+    public int findMethod(String name) {
+        Integer index = methodLookup.get(softName(name));
+        return index != null ? index : -1;
     }
 
     public T newInstance () {
@@ -133,12 +205,6 @@ class Serializer<T> {
     private static final ConcurrentHashMap<Class<?>, Serializer<?>> serializers = new ConcurrentHashMap<>();
 
     public static <T> Serializer<T> get(Class<T> type) {
-        Serializer<T> serializer = (Serializer<T>) serializers.get(type);
-        if(serializer == null) {
-            // Create new
-            serializer = new Serializer<>(type);
-            serializers.put(type, serializer);
-        }
-        return serializer;
+        return (Serializer<T>) serializers.computeIfAbsent(type, Serializer::new);
     }
 }
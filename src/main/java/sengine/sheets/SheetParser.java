@@ -5,16 +5,39 @@ import com.badlogic.gdx.utils.BooleanArray;
 import com.badlogic.gdx.utils.IntArray;
 import com.opencsv.CSVReader;
 import org.apache.commons.lang3.ArrayUtils;
-import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
 
 import static sengine.sheets.SheetParser.FieldParseResult.*;
@@ -149,6 +172,8 @@ public class SheetParser {
     private final Array<long[]> linePositions = new Array<>(long[].class);
     private final BooleanArray objectFilledStack = new BooleanArray();
     private int currentLine = 0;
+    private int sheet = 0;                  // index of the sheet in the workbook
+    private boolean isMerging = false;      // callbacks of the root object are called once for all sheets
 
     public String[][] parseSheetArray(int baseShift) {
         Array<String[]> sheet = new Array<>(String[].class);
@@ -314,20 +339,19 @@ public class SheetParser {
         try {
             if(field == null) {
                 // It's a field method
-                Method fieldMethod = serializer.fieldMethods[fieldIndex];
                 Object parameter;
                 if(fieldPrimitive != null) {
                     // Else its a primitive, parse and save
                     if (value.startsWith(ESCAPE))            // Escape
                         value = value.substring(ESCAPE.length());
                     parameter = fieldPrimitive.parse(fieldType, value);
-                    fieldMethod.invoke(object, parameter);      // Let field method to handle this field
+                    serializer.invokeFieldMethod(fieldIndex, object, parameter);      // Let field method to handle this field
                     return PARSED_PRIMITIVE;
                 }
                 else {
                     // Else its an object
                     parameter = parse(fieldType, null, shift);       // will always return something
-                    fieldMethod.invoke(object, parameter);
+                    serializer.invokeFieldMethod(fieldIndex, object, parameter);
                     return PARSED_OBJECT;
                 }
             }
@@ -433,7 +457,8 @@ public class SheetParser {
                 objectFilledStack.add(false);
 
             // Callback
-            if(object instanceof OnSheetStarted) {
+            boolean isMergedRoot = isMerging && SheetStack.size() == 1;
+            if(object instanceof OnSheetStarted && !isMergedRoot) {
                 try {
                     ((OnSheetStarted) object).onSheetStarted();
                 }
@@ -630,7 +655,7 @@ public class SheetParser {
 
                     // Call this method
                     try {
-                        method.invoke(object, parameters);
+                        serializer.invokeMethod(index, object, parameters);
                     } catch (Throwable e) {
                         // Build error string
                         String parameterList = "";
@@ -650,12 +675,9 @@ public class SheetParser {
                     }
 
                     // If is field method, honor required fields
-                    for(int c = 0; c < serializer.fieldMethods.length; c++) {
-                        if(serializer.fieldMethods[c] == method) {
-                            objectFilledStack.items[objectFilledOffset + c] = true;
-                            break;
-                        }
-                    }
+                    int methodField = serializer.fieldOfMethod(index);
+                    if(methodField != -1)
+                        objectFilledStack.items[objectFilledOffset + methodField] = true;
                 }
 
                 // Done, if still the same line, increment
@@ -674,7 +696,7 @@ public class SheetParser {
             }
 
             // Callback
-            if(object instanceof OnSheetEnded) {
+            if(object instanceof OnSheetEnded && !isMergedRoot) {
                 try {
                     ((OnSheetEnded) object).onSheetEnded();
                 }
@@ -695,111 +717,241 @@ public class SheetParser {
         return object;
     }
 
-    public <T> T parseXLS(InputStream s, String sheetName, Class<T> type, T existingObject) {
-        try {
-            // Reset
-            clear();
+    /**
+     * Feeds rows of a sheet to {@link #addRow(int, String[])} as they are read from the xml, reusing one row buffer.
+     * Formulas are not evaluated, their cached results are used instead.
+     */
+    private class RowReader implements XSSFSheetXMLHandler.SheetContentsHandler {
+        private String[] values = new String[16];
+        private int lastCell = -1;
+        private int nextCell = 0;
+
+        @Override
+        public void startRow(int rowNum) {
+            lastCell = -1;
+            nextCell = 0;
+        }
 
-            // Open workbook
-            Workbook wb = new XSSFWorkbook(s);
-            Sheet sheet = wb.getSheet(sheetName);
-            if (sheet == null)
-                throw new ParseException("Sheet not found: " + sheetName);
+        @Override
+        public void endRow(int rowNum) {
+            if(lastCell == -1)
+                return;         // empty row
+            String[] row = Arrays.copyOf(values, lastCell + 1);
+            Arrays.fill(values, 0, lastCell + 1, null);
+            addRow(rowNum, row);
+        }
 
-            // Evaluate all cells
-            FormulaEvaluator evaluator = wb.getCreationHelper().createFormulaEvaluator();
-            DataFormatter formatter = new DataFormatter();
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            int c = cellReference != null ? new CellReference(cellReference).getCol() : nextCell;
+            nextCell = c + 1;
+            if(formattedValue == null)
+                return;
+            if(c >= values.length)
+                values = Arrays.copyOf(values, Math.max(c + 1, values.length * 2));
+            values[c] = formattedValue;
+            lastCell = Math.max(lastCell, c);
+        }
 
-            int lastRow = sheet.getLastRowNum();
+        @Override
+        public void headerFooter(String text, boolean isHeader, String tagName) {
+            // not used
+        }
+    }
 
-            for (int r = 0; r <= lastRow; r++) {
-                Row row = sheet.getRow(r);
-                if (row == null)
-                    continue;       // UB or empty row
+    private static XMLReader newXMLReader() throws ParserConfigurationException, SAXException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        return factory.newSAXParser().getXMLReader();
+    }
 
-                int lastCell = row.getLastCellNum();
-                if(lastCell == -1)
-                    continue;
-                String[] values = new String[lastCell];
-
-                for (int c = 0; c < lastCell; c++) {
-                    Cell cell = row.getCell(c, Row.MissingCellPolicy.RETURN_BLANK_AS_NULL);
-                    if (cell != null) {
-                        // Evaluate and format cell
-                        evaluator.evaluateInCell(cell);
-                        values[c] = formatter.formatCellValue(cell);
+    private void readSheet(XMLReader reader, StylesTable styles, ReadOnlySharedStringsTable strings, InputStream sheet) throws IOException, SAXException {
+        reader.setContentHandler(new XSSFSheetXMLHandler(styles, strings, new RowReader(), new DataFormatter(), false));
+        reader.parse(new InputSource(sheet));
+    }
+
+    private static OPCPackage openPackage(InputStream s, Path file) throws IOException, InvalidFormatException {
+        // Zip entries are only read on demand from a file, an InputStream would be loaded into memory entirely
+        Files.copy(s, file, StandardCopyOption.REPLACE_EXISTING);
+        return OPCPackage.open(file.toFile(), PackageAccess.READ);
+    }
+
+    /**
+     * Reads rows of a sheet without parsing, see {@link #parse(Class, Object)}.
+     */
+    public void readXLS(InputStream s, String sheetName) {
+        Path file = null;
+        try {
+            // Reset
+            clear();
+
+            file = Files.createTempFile("sheet", ".xlsx");
+            try (OPCPackage pkg = openPackage(s, file)) {
+                XSSFReader xssf = new XSSFReader(pkg);
+                ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+                StylesTable styles = xssf.getStylesTable();
+                XMLReader reader = newXMLReader();
+
+                XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) xssf.getSheetsData();
+                while (sheets.hasNext()) {
+                    try (InputStream sheet = sheets.next()) {
+                        if (!sheets.getSheetName().equals(sheetName))
+                            continue;
+                        readSheet(reader, styles, strings, sheet);
+                        return;
                     }
                 }
-
-                // Add row
-                addRow(r, values);
+                throw new ParseException("Sheet not found: " + sheetName);
             }
-
         } catch (Throwable e) {
             clear();
             throw new ParseException("Error reading xls sheet: " + sheetName, e);
+        } finally {
+            deleteTempFile(file);
         }
+    }
+
+    public <T> T parseXLS(InputStream s, String sheetName, Class<T> type, T existingObject) {
+        readXLS(s, sheetName);
 
         // Done reading all rows, parse
         return parse(type, existingObject);
     }
 
     public <T> T parseXLS(InputStream s, Class<T> type, T existingObject) {
+        Path file = null;
         try {
-            // Open workbook
-            Workbook wb = new XSSFWorkbook(s);
+            file = Files.createTempFile("sheet", ".xlsx");
+            try (OPCPackage pkg = openPackage(s, file)) {
+                XSSFReader xssf = new XSSFReader(pkg);
+                ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+                StylesTable styles = xssf.getStylesTable();
+                XMLReader reader = newXMLReader();
+
+                // Parse all sheets, only rows of one sheet are kept at a time
+                XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) xssf.getSheetsData();
+                for (int index = 0; sheets.hasNext(); index++) {
+                    try (InputStream sheet = sheets.next()) {
+                        // Reset
+                        clear();
+                        this.sheet = index;
+
+                        readSheet(reader, styles, strings, sheet);
+
+                        // Parse
+                        existingObject = parse(type, existingObject);
 
-            FormulaEvaluator evaluator = wb.getCreationHelper().createFormulaEvaluator();
-            DataFormatter formatter = new DataFormatter();
-
-            // Parse all sheets
-            int count = wb.getNumberOfSheets();
-            for(int index = 0; index < count; index++) {
-                Sheet sheet = wb.getSheetAt(index);
+                    } catch (Throwable e) {
+                        clear();
+                        throw new ParseException("Error in sheet: " + sheets.getSheetName(), e);
+                    }
+                }
+            }
+        } catch (IOException | OpenXML4JException | SAXException | ParserConfigurationException e) {
+            throw new ParseException("Error reading xls", e);
+        } finally {
+            deleteTempFile(file);
+        }
 
-                try {
-                    // Reset
-                    clear();
 
-                    // Evaluate all cells
-                    int lastRow = sheet.getLastRowNum();
+        return existingObject;
+    }
 
-                    for (int r = 0; r <= lastRow; r++) {
-                        Row row = sheet.getRow(r);
-                        if (row == null)
-                            continue;       // UB or empty row
+    /**
+     * Parses sheets concurrently into the same object, which must tolerate being filled from multiple threads.
+     * Sheets are read in order and parsed on the executor. At most maxSheets sheets are read but not parsed yet, so only
+     * rows of that many sheets are kept at a time.
+     * {@link OnSheetStarted} and {@link OnSheetEnded} of the object are called once for the whole workbook,
+     * {@link SheetStack#sheet()} can be used to merge values in sheet order.
+     */
+    public <T> T parseXLS(InputStream s, Class<T> type, T existingObject, Executor executor, int maxSheets) {
+        if(maxSheets <= 0)
+            throw new IllegalArgumentException("maxSheets must be positive");
+        T object = existingObject != null ? existingObject : Serializer.get(type).newInstance();
+        Semaphore permits = new Semaphore(maxSheets);
+        List<CompletableFuture<T>> tasks = new ArrayList<>();
+        SheetStack.add(object);
+        try {
+            if(object instanceof OnSheetStarted)
+                ((OnSheetStarted) object).onSheetStarted();
 
-                        int lastCell = row.getLastCellNum();
-                        if (lastCell == -1)
-                            continue;
-                        String[] values = new String[lastCell];
-
-                        for (int c = 0; c < lastCell; c++) {
-                            Cell cell = row.getCell(c, Row.MissingCellPolicy.RETURN_BLANK_AS_NULL);
-                            if (cell != null) {
-                                // Evaluate and format cell
-                                evaluator.evaluateInCell(cell);
-                                values[c] = formatter.formatCellValue(cell);
-                            }
+            // Read each sheet and parse it on its own task
+            Path file = null;
+            try {
+                file = Files.createTempFile("sheet", ".xlsx");
+                try (OPCPackage pkg = openPackage(s, file)) {
+                    XSSFReader xssf = new XSSFReader(pkg);
+                    ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+                    StylesTable styles = xssf.getStylesTable();
+                    XMLReader reader = newXMLReader();
+
+                    XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) xssf.getSheetsData();
+                    for (int index = 0; sheets.hasNext(); index++) {
+                        // Wait for a sheet to be parsed before keeping rows of another
+                        permits.acquire();
+                        SheetParser parser = new SheetParser();
+                        String name;
+                        try (InputStream sheet = sheets.next()) {
+                            name = sheets.getSheetName();
+                            parser.sheet = index;
+                            parser.isMerging = true;
+                            parser.readSheet(reader, styles, strings, sheet);
+                        } catch (Throwable e) {
+                            permits.release();
+                            throw new ParseException("Error in sheet: " + sheets.getSheetName(), e);
                         }
-
-                        // Add row
-                        addRow(r, values);
+                        tasks.add(CompletableFuture.supplyAsync(() -> {
+                            try {
+                                return parser.parse(type, object);
+                            } catch (Throwable e) {
+                                throw new ParseException("Error in sheet: " + name, e);
+                            } finally {
+                                parser.clear();
+                                permits.release();
+                            }
+                        }, executor));
                     }
+                }
+            } catch (IOException | OpenXML4JException | SAXException | ParserConfigurationException e) {
+                throw new ParseException("Error reading xls", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ParseException("Interrupted while reading xls", e);
+            } finally {
+                deleteTempFile(file);
+            }
 
-                    // Parse
-                    existingObject = parse(type, existingObject);
-
-                } catch (Throwable e) {
-                    throw new ParseException("Error in sheet: " + sheet.getSheetName(), e);
+            // Wait for all sheets, report the first failed sheet
+            ParseException error = null;
+            for(CompletableFuture<T> task : tasks) {
+                try {
+                    task.join();
+                } catch (CompletionException e) {
+                    if(error == null)
+                        error = (ParseException) e.getCause();
                 }
             }
-        } catch (IOException e) {
-            throw new ParseException("Error reading xls", e);
+            if(error != null)
+                throw error;
+
+            if(object instanceof OnSheetEnded)
+                ((OnSheetEnded) object).onSheetEnded();
+        } finally {
+            SheetStack.pop();
         }
 
+        return object;
+    }
 
-        return existingObject;
+    private static void deleteTempFile(Path file) {
+        if(file == null)
+            return;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            file.toFile().deleteOnExit();
+        }
     }
 
     public <T> T parseCSV(String csv, Class<T> type) {
@@ -892,6 +1044,8 @@ public class SheetParser {
 
     public <T> T parse(Class<T> type, T existingObject) {
         // Parse to structure
+        int previousSheet = SheetStack.sheet();
+        SheetStack.setSheet(sheet);
         try {
             T result = parse(type, existingObject, 0);
 
@@ -905,6 +1059,7 @@ public class SheetParser {
         finally {
             // Clear
             clear();
+            SheetStack.setSheet(previousSheet);
         }
     }
 
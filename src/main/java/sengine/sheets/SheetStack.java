@@ -11,6 +11,20 @@ public class SheetStack {
         }
     };
 
+    private static final ThreadLocal<int[]> sheetLocal = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /**
+     * @return index of the workbook sheet being parsed on this thread, sheets of a workbook may be parsed concurrently
+     */
+    public static int sheet() {
+        return sheetLocal.get()[0];
+    }
+
     public static int size() {
         return stackLocal.get().size;
     }
@@ -81,4 +95,8 @@ public class SheetStack {
     static void pop() {
         stackLocal.get().pop();
     }
+
+    static void setSheet(int index) {
+        sheetLocal.get()[0] = index;
+    }
 }
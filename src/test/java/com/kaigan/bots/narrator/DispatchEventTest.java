@@ -0,0 +1,104 @@
+package com.kaigan.bots.narrator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How events are absorbed when services are spread between the calling thread and dispatch lanes.
+ */
+public class DispatchEventTest {
+
+    /**
+     * Service on a lane, or on the calling thread if lane is null, optionally absorbing events.
+     */
+    static class TestService implements NarratorService {
+        final String name;
+        final QueuedLane lane;
+        final boolean absorbs;
+
+        TestService(String name, QueuedLane lane, boolean absorbs) {
+            this.name = name;
+            this.lane = lane;
+            this.absorbs = absorbs;
+        }
+    }
+
+    /**
+     * Lane which only runs its tasks when asked to, so tests can tell what was dispatched to it.
+     */
+    static class QueuedLane implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            for(Runnable task : tasks)
+                task.run();
+            tasks.clear();
+        }
+    }
+
+    final List<String> received = Collections.synchronizedList(new ArrayList<>());
+
+    void dispatch(TestService... services) {
+        Narrator.dispatchEvent(Arrays.asList(services), service -> {
+            TestService test = (TestService) service;
+            received.add(test.name);
+            return test.absorbs;
+        }, service -> ((TestService) service).lane);
+    }
+
+    @Test
+    public void absorbedOnCallingThreadSkipsLanes() {
+        QueuedLane lane = new QueuedLane();
+        dispatch(
+                new TestService("lane before", lane, false),
+                new TestService("main", null, true),
+                new TestService("lane after", lane, false),
+                new TestService("main after", null, false)
+        );
+        assertTrue("no lane dispatch after absorbed", lane.tasks.isEmpty());
+        assertEquals(Collections.singletonList("main"), received);
+    }
+
+    @Test
+    public void callingThreadReceivesBeforeLanes() {
+        QueuedLane lane = new QueuedLane();
+        dispatch(
+                new TestService("lane", lane, false),
+                new TestService("main", null, false)
+        );
+        assertEquals(Collections.singletonList("main"), received);
+        lane.runAll();
+        assertEquals(Arrays.asList("main", "lane"), received);
+    }
+
+    @Test
+    public void absorbedOnLaneOnlyStopsThatLane() {
+        QueuedLane first = new QueuedLane();
+        QueuedLane second = new QueuedLane();
+        dispatch(
+                new TestService("first absorbs", first, true),
+                new TestService("second", second, false),
+                new TestService("first after", first, false),
+                new TestService("second after", second, false),
+                new TestService("main", null, false)
+        );
+        assertEquals(1, first.tasks.size());
+        assertEquals(1, second.tasks.size());
+        first.runAll();
+        second.runAll();
+        assertEquals(Arrays.asList("main", "first absorbs", "second", "second after"), received);
+    }
+}